@@ -0,0 +1,71 @@
+package com.wjholden.tcpmonitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Synthetic ASA syslog for the benchmarks: a mix of 302013-302016 builds and
+ * teardowns over random outside addresses, plus the kind of unrelated noise
+ * (ACL denies, VPN, failover) that a real firewall sends.
+ */
+final class AsaMessageGenerator {
+    
+    private static final String[] NOISE = {
+        "<166>Oct 18 2026 12:00:00: %ASA-4-106023: Deny tcp src outside:{}/51234 dst inside:10.1.1.1/445 by access-group \"outside_in\" [0x0, 0x0]",
+        "<166>Oct 18 2026 12:00:00: %ASA-6-113004: AAA user authentication Successful : server = 10.1.1.5 : user = alice",
+        "<166>Oct 18 2026 12:00:00: %ASA-5-111008: User 'enable_15' executed the 'show failover' command.",
+        "<166>Oct 18 2026 12:00:00: %ASA-6-305011: Built dynamic TCP translation from inside:10.1.1.9/5555 to outside:{}/5555",
+    };
+    
+    private final Random random;
+    private final int hosts;
+    
+    /**
+     * @param hosts how many distinct outside addresses to draw from, which
+     * decides the GeoIP cache hit rate.
+     */
+    AsaMessageGenerator(long seed, int hosts) {
+        this.random = new Random(seed);
+        this.hosts = hosts;
+    }
+    
+    String address() {
+        int h = random.nextInt(hosts);
+        // spread the hosts over the IPv4 unicast space
+        int ip = h * 0x9e3779b1;
+        return (1 + ((ip >>> 24) % 223)) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    }
+    
+    String built(long connection, String address, boolean udp) {
+        return String.format("<166>Oct 18 2026 12:00:00: %%ASA-6-%d: Built inbound %s connection %d for outside:%s/443 (%s/443) to inside:10.1.1.1/51234 (203.0.113.1/51234)",
+                udp ? AsaMessageId.BUILT_UDP : AsaMessageId.BUILT_TCP, udp ? "UDP" : "TCP", connection, address, address);
+    }
+    
+    String teardown(long connection, String address, boolean udp) {
+        return String.format("<166>Oct 18 2026 12:00:00: %%ASA-6-%d: Teardown %s connection %d for outside:%s/443 to inside:10.1.1.1/51234 duration 0:00:30 bytes 1337%s",
+                udp ? AsaMessageId.TEARDOWN_UDP : AsaMessageId.TEARDOWN_TCP, udp ? "UDP" : "TCP", connection, address, udp ? "" : " TCP FINs");
+    }
+    
+    String noise() {
+        return NOISE[random.nextInt(NOISE.length)].replace("{}", address());
+    }
+    
+    /**
+     * @param noise the fraction of messages that are not connection messages.
+     */
+    byte[][] messages(int count, double noise) {
+        byte[][] messages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            String message;
+            if (random.nextDouble() < noise) {
+                message = noise();
+            } else if (random.nextBoolean()) {
+                message = built(i, address(), random.nextInt(4) == 0);
+            } else {
+                message = teardown(i, address(), random.nextInt(4) == 0);
+            }
+            messages[i] = message.getBytes(StandardCharsets.US_ASCII);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,86 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Geolocation with the lookup cache, with only the network range index, with
+ * neither, and classify() alone.
+ * 
+ * Needs a GeoLite2 City database, either in the jar's resources or named by
+ * -Dconnectionmap.geoip.database (pass it with -Dbench.jvmargs). The hosts
+ * parameter is the number of distinct peers, which decides the hit rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoBenchmark {
+    
+    @Param({"1000", "100000"})
+    public int hosts;
+    
+    private GeoDatabase database;
+    private GeoLocator cached;
+    private GeoLocator ranged;
+    private GeoLocator uncached;
+    private AsaEvent[] events;
+    private int next;
+    
+    @Setup
+    public void setup() throws IOException {
+        database = new GeoDatabase();
+        cached = new GeoLocator(database, 16384, 65536);
+        // the smallest possible cache, which the random addresses will miss
+        ranged = new GeoLocator(database, 1, 65536);
+        uncached = new GeoLocator(database, 1, 0);
+        AsaMessageGenerator generator = new AsaMessageGenerator(1, hosts);
+        AsaParser parser = new AsaParser("outside");
+        events = new AsaEvent[4096];
+        for (int i = 0; i < events.length; i++) {
+            byte[] message = generator.built(i, generator.address(), false).getBytes();
+            events[i] = new AsaEvent();
+            parser.parse(message, 0, message.length, events[i]);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        database.close();
+    }
+    
+    @Benchmark
+    public long locateCached() {
+        return cached.locate(events[next++ & (events.length - 1)]);
+    }
+    
+    @Benchmark
+    public long locateRanged() {
+        return ranged.locate(events[next++ & (events.length - 1)]);
+    }
+    
+    @Benchmark
+    public long locateUncached() {
+        return uncached.locate(events[next++ & (events.length - 1)]);
+    }
+    
+    @Benchmark
+    public int classify() {
+        int i = next++;
+        return GeoLocator.classify((i % 180) - 90 + 0.25, (i % 360) - 180 + 0.75);
+    }
+}
@@ -0,0 +1,53 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * increment()/decrement() on the shared grid from several workers at once.
+ * The hot parameter is the number of distinct cells being hammered; one
+ * cell is the worst case for contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridBenchmark {
+    
+    @Param({"1", "64", "259200"})
+    public int hot;
+    
+    private final ConnectionGrid grid = new ConnectionGrid();
+    
+    private int cell() {
+        return ThreadLocalRandom.current().nextInt(hot);
+    }
+    
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void increment() {
+        grid.increment(cell(), false);
+    }
+    
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public boolean decrement() {
+        return grid.decrement(cell(), false);
+    }
+}
@@ -0,0 +1,72 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting one connection into the heavy hitters, and asking for the top 10
+ * over each window with every bucket full, as four workers would have them.
+ * Hosts are drawn so that a few are much busier than the rest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeavyHitterBenchmark {
+    
+    @Param({"64", "256"})
+    public int capacity;
+    
+    @Param({"1m", "1h"})
+    public String window;
+    
+    private HeavyHitters[] parts;
+    private HeavyHitters.Window topWindow;
+    private long now;
+    
+    @Setup
+    public void setup() {
+        topWindow = HeavyHitters.Window.of(window);
+        parts = new HeavyHitters[4];
+        now = System.currentTimeMillis();
+        long start = now - TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new HeavyHitters(capacity);
+            // a connection every 100 ms for the last hour
+            for (long t = start; t <= now; t += 100) {
+                parts[i].count(host(), (int) (t % 200), (int) (t % 5000), t);
+            }
+        }
+    }
+    
+    private static long host() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        return 0xffff_0000_0000_0000L | (long) ((1 << 20) * r * r * r);
+    }
+    
+    @Benchmark
+    public HeavyHitters count() {
+        now++;
+        parts[0].count(host(), 0x5553, 15169, now);
+        return parts[0];
+    }
+    
+    @Benchmark
+    public List<HeavyHitters.Hitter> top() {
+        return HeavyHitters.top(parts, HeavyHitters.Dimension.HOST, topWindow, 10, now);
+    }
+}
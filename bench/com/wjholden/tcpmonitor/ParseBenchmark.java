@@ -0,0 +1,50 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The byte parser against the original OPEN_PATTERN/CLOSE_PATTERN regexes,
+ * over a mix of connection messages and noise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    
+    @Param({"bytes", "regex"})
+    public String parser;
+    
+    @Param({"0.0", "0.5"})
+    public double noise;
+    
+    private AsaParser asaParser;
+    private final AsaEvent event = new AsaEvent();
+    private byte[][] messages;
+    private int next;
+    
+    @Setup
+    public void setup() {
+        asaParser = "regex".equals(parser) ? new RegexAsaParser("outside") : new AsaParser("outside");
+        messages = new AsaMessageGenerator(1, 10000).messages(4096, noise);
+    }
+    
+    @Benchmark
+    public boolean parse() {
+        byte[] message = messages[next++ & (messages.length - 1)];
+        return asaParser.parse(message, 0, message.length, event);
+    }
+}
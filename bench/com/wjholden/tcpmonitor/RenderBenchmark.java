@@ -0,0 +1,75 @@
+package com.wjholden.tcpmonitor;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering at various map occupancies: a frame where 100 cells changed,
+ * and a full redraw as after a pan. Occupancy is in cells of the finest
+ * level; zoom is capped at -Dconnectionmap.grid.zoom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+    
+    @Param({"0", "1000", "50000", "259200"})
+    public int occupied;
+    
+    @Param({"false", "true"})
+    public boolean heat;
+    
+    @Param({"0", "1"})
+    public int zoom;
+    
+    private ConnectionGrid grid;
+    private MapRenderer renderer;
+    private LandMask earth;
+    private final Random random = new Random(1);
+    private int xoffset;
+    
+    @Setup
+    public void setup() throws IOException {
+        grid = new ConnectionGrid();
+        renderer = new MapRenderer(grid);
+        earth = LandMask.load("/resources/earth3");
+        zoom = Math.min(zoom, ConnectionGrid.ZOOM);
+        for (int i = 0; i < occupied; i++) {
+            grid.increment((int) (i * 7919L % ConnectionGrid.cells(ConnectionGrid.ZOOM)), false);
+        }
+        renderer.render(earth, 0xff006000, zoom, 0, 0, 20, 1, heat);
+    }
+    
+    @Benchmark
+    public BufferedImage incremental() {
+        for (int i = 0; i < 100; i++) {
+            int cell = random.nextInt(ConnectionGrid.cells(ConnectionGrid.ZOOM));
+            if (!grid.decrement(cell, false)) {
+                grid.increment(cell, false);
+            }
+        }
+        return renderer.render(earth, 0xff006000, zoom, 0, 0, 20, 1, heat);
+    }
+    
+    @Benchmark
+    public BufferedImage redraw() {
+        xoffset = (xoffset + 1) % ConnectionGrid.WIDTH;
+        return renderer.render(earth, 0xff006000, zoom, xoffset, 0, 20, 1, heat);
+    }
+}
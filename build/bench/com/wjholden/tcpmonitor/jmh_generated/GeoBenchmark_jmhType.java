@@ -0,0 +1,4 @@
+package com.wjholden.tcpmonitor.jmh_generated;
+public class GeoBenchmark_jmhType extends GeoBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.wjholden.tcpmonitor.jmh_generated;
+public class GridBenchmark_jmhType extends GridBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.wjholden.tcpmonitor.jmh_generated;
+public class HeavyHitterBenchmark_jmhType extends HeavyHitterBenchmark_jmhType_B3 {
+}
+
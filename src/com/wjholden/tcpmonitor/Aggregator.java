@@ -0,0 +1,345 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the grids of any number of {@link Collector}s into ours, to be
+ * drawn and served like any other.
+ * 
+ * A ConnectionMap started with -Dconnectionmap.aggregator.port accepts
+ * collectors on that port, each connection on its own thread as in
+ * {@link TcpSyslogListener}. We keep what every collector sent in a grid of
+ * its own, so that a frame's counts can be turned into changes to the merged
+ * grid, and so that a collector that goes away can be taken off the map. A
+ * frame is read whole before it is applied. Our own listeners still count
+ * into the merged grid as usual; point -Dconnectionmap.sources somewhere
+ * quiet for an aggregator that only aggregates. History is recorded as
+ * usual but not restored at startup, since the collectors restore their own
+ * and send it in their key frames.
+ * 
+ * Frames from a collector are applied in order of sequence number. A frame
+ * at or below the last one applied for the collector's session is a
+ * duplicate and is skipped, as is anything from an older session. A key
+ * frame is always taken. A delta that skips a number closes the connection,
+ * so that the collector reconnects and resyncs with a key frame. A collector
+ * that has sent nothing for -Dconnectionmap.aggregator.expiry seconds
+ * (default 300) is taken off the map; the same is the read timeout of a
+ * connection.
+ * 
+ * Every collector costs as much memory as a grid, see
+ * {@link ConnectionGrid}, and must run with the same
+ * -Dconnectionmap.grid.zoom as we do.
+ */
+final class Aggregator implements Runnable {
+    
+    private static final int MAX_NAME = 255;
+    
+    /**
+     * What we know of one collector, by name. Guarded by itself.
+     */
+    private static final class Remote {
+        final String name;
+        final ConnectionGrid grid = new ConnectionGrid();
+        final Metrics.Counter keys;
+        final Metrics.Counter deltas;
+        final Metrics.Counter duplicates;
+        long session;
+        long sequence;
+        // the collector's clock at the last frame, and ours
+        long time;
+        long seen = System.currentTimeMillis();
+        boolean expired;
+        
+        Remote(String name) {
+            this.name = name;
+            keys = Metrics.counter("aggregator_frames_total", "Frames applied from collectors.",
+                    "collector", name, "type", "key");
+            deltas = Metrics.counter("aggregator_frames_total", "Frames applied from collectors.",
+                    "collector", name, "type", "delta");
+            duplicates = Metrics.counter("aggregator_duplicates_total", "Frames skipped because they were already applied.",
+                    "collector", name);
+        }
+    }
+    
+    /**
+     * One frame as read, before it is applied.
+     */
+    private static final class Frame {
+        boolean key;
+        long sequence;
+        long time;
+        int count;
+        // level 0 cells, and the counts under each, (tcp, udp) per finest cell
+        int[] cells = new int[1024];
+        int[] counts = new int[1024 * 2 * BLOCK];
+    }
+    
+    // finest cells under a level 0 cell
+    private static final int BLOCK = 1 << (2 * ConnectionGrid.ZOOM);
+    
+    private final ConnectionGrid grid;
+    private final int port;
+    private final long expiry;
+    private final Map<String, Remote> remotes = new TreeMap<>();
+    private final Metrics.Counter connections;
+    private final Metrics.Counter resyncs;
+    
+    /**
+     * @param grid the merged grid.
+     */
+    Aggregator(ConnectionGrid grid, int port) {
+        this.grid = grid;
+        this.port = port;
+        expiry = TimeUnit.SECONDS.toMillis(Math.max(1, Settings.getInt("aggregator.expiry", 300)));
+        connections = Metrics.counter("aggregator_connections_total", "Collector connections accepted.");
+        resyncs = Metrics.counter("aggregator_resyncs_total", "Collector connections closed because a frame was missed.");
+        Metrics.gauge("aggregator_collectors", "Collectors on the map.", () -> {
+            synchronized (remotes) {
+                return remotes.size();
+            }
+        });
+    }
+    
+    @Override
+    public void run() {
+        try (ServerSocket server = new ServerSocket(port)) {
+            serve(server);
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    /**
+     * Accept collectors on a bound socket until it is closed.
+     */
+    void serve(ServerSocket server) throws IOException {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Aggregator expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(() -> expire(System.currentTimeMillis()), 10, 10, TimeUnit.SECONDS);
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                connections.increment();
+                Thread reader = new Thread(() -> read(socket), "Aggregator " + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } finally {
+            sweeper.shutdown();
+        }
+    }
+    
+    private void read(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout((int) Math.min(Integer.MAX_VALUE, expiry));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+            if (in.readByte() != Collector.HELLO) {
+                throw new IOException("No hello from " + s.getRemoteSocketAddress());
+            }
+            int version = varint(in);
+            int zoom = varint(in);
+            long session = in.readLong();
+            int length = varint(in);
+            if (version != Collector.VERSION || zoom != ConnectionGrid.ZOOM || length < 0 || length > MAX_NAME) {
+                throw new IOException(String.format("Can't aggregate %s: version %d, zoom %d",
+                        s.getRemoteSocketAddress(), version, zoom));
+            }
+            byte[] utf8 = new byte[length];
+            in.readFully(utf8);
+            Remote remote = remote(new String(utf8, StandardCharsets.UTF_8));
+            Frame frame = new Frame();
+            while (read(in, frame)) {
+                apply(remote, session, frame);
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    private Remote remote(String name) {
+        synchronized (remotes) {
+            return remotes.computeIfAbsent(name, Remote::new);
+        }
+    }
+    
+    /**
+     * @return false at the end of the stream.
+     */
+    private static boolean read(DataInputStream in, Frame frame) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        if (type != Collector.KEY && type != Collector.DELTA) {
+            throw new IOException("Unknown frame type " + type);
+        }
+        frame.key = type == Collector.KEY;
+        frame.sequence = in.readLong();
+        frame.time = in.readLong();
+        frame.count = varint(in);
+        if (frame.count < 0 || frame.count > ConnectionGrid.CELLS) {
+            throw new IOException("Bad cell count " + frame.count);
+        }
+        if (frame.cells.length < frame.count) {
+            frame.cells = new int[frame.count];
+            frame.counts = new int[frame.count * 2 * BLOCK];
+        }
+        int cell = -1;
+        for (int i = 0; i < frame.count; i++) {
+            int gap = varint(in);
+            if (gap <= 0 || gap >= ConnectionGrid.CELLS - cell) {
+                throw new IOException("Bad cell gap " + gap);
+            }
+            cell += gap;
+            frame.cells[i] = cell;
+            for (int j = i * 2 * BLOCK; j < (i + 1) * 2 * BLOCK; j++) {
+                frame.counts[j] = varint(in);
+            }
+        }
+        return true;
+    }
+    
+    private static int varint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+    
+    private void apply(Remote remote, long session, Frame frame) throws IOException {
+        synchronized (remote) {
+            if (remote.expired) {
+                throw new IOException(remote.name + " expired");
+            }
+            remote.seen = System.currentTimeMillis();
+            if (session < remote.session || (session == remote.session && frame.sequence <= remote.sequence)) {
+                remote.duplicates.increment();
+                return;
+            }
+            if (!frame.key && (session != remote.session || frame.sequence != remote.sequence + 1)) {
+                resyncs.increment();
+                throw new IOException(String.format("%s skipped from %d to %d, resyncing",
+                        remote.name, remote.sequence, frame.sequence));
+            }
+            BitSet listed = frame.key ? new BitSet(ConnectionGrid.CELLS) : null;
+            for (int i = 0; i < frame.count; i++) {
+                put(remote, frame.cells[i], frame.counts, i * 2 * BLOCK);
+                if (listed != null) {
+                    listed.set(frame.cells[i]);
+                }
+            }
+            if (listed != null) {
+                // a key frame has every occupied cell, so the rest are empty now
+                for (int cell : occupied(remote)) {
+                    if (!listed.get(cell)) {
+                        put(remote, cell, null, 0);
+                    }
+                }
+            }
+            remote.session = session;
+            remote.sequence = frame.sequence;
+            remote.time = frame.time;
+            (frame.key ? remote.keys : remote.deltas).increment();
+        }
+    }
+    
+    /**
+     * Set the finest cells under a level 0 cell of a collector to the given
+     * counts, or to 0 if there are none, and the merged grid to match.
+     */
+    private void put(Remote remote, int cell, int[] counts, int offset) {
+        int side = 1 << ConnectionGrid.ZOOM;
+        int width = ConnectionGrid.width(ConnectionGrid.ZOOM);
+        int first = ((cell / ConnectionGrid.WIDTH) << ConnectionGrid.ZOOM) * width
+                + ((cell % ConnectionGrid.WIDTH) << ConnectionGrid.ZOOM);
+        int j = offset;
+        for (int dy = 0; dy < side; dy++) {
+            for (int dx = 0; dx < side; dx++) {
+                int fine = first + dy * width + dx;
+                int t = (counts == null ? 0 : counts[j++]) - remote.grid.tcp(ConnectionGrid.ZOOM, fine);
+                int u = (counts == null ? 0 : counts[j++]) - remote.grid.udp(ConnectionGrid.ZOOM, fine);
+                if (t != 0 || u != 0) {
+                    remote.grid.add(fine, t, u);
+                    grid.add(fine, t, u);
+                }
+            }
+        }
+    }
+    
+    private static List<Integer> occupied(Remote remote) {
+        List<Integer> cells = new ArrayList<>();
+        remote.grid.forEach((x, y, t, u) -> cells.add(y * ConnectionGrid.WIDTH + x));
+        return cells;
+    }
+    
+    /**
+     * Take collectors we haven't heard from for too long off the map.
+     * 
+     * @param now the time to judge by, in epoch milliseconds.
+     */
+    void expire(long now) {
+        List<Remote> all;
+        synchronized (remotes) {
+            all = new ArrayList<>(remotes.values());
+        }
+        for (Remote remote : all) {
+            synchronized (remote) {
+                if (now - remote.seen < expiry) {
+                    continue;
+                }
+                for (int cell : occupied(remote)) {
+                    put(remote, cell, null, 0);
+                }
+                remote.expired = true;
+            }
+            synchronized (remotes) {
+                remotes.remove(remote.name, remote);
+            }
+            System.err.println("Collector " + remote.name + " expired");
+        }
+    }
+    
+    /**
+     * @return a line per collector for {@link ConnectionMap#statistics}.
+     */
+    String statistics() {
+        List<Remote> all;
+        synchronized (remotes) {
+            all = new ArrayList<>(remotes.values());
+        }
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (Remote remote : all) {
+            synchronized (remote) {
+                sb.append(String.format("Collector %s: frame %d of %tT, %d s ago%n",
+                        remote.name, remote.sequence, remote.time, (now - remote.seen) / 1000));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package com.wjholden.tcpmonitor;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * A parsed connection build or teardown. Instances are mutable and meant to be
+ * reused by a single parser thread so that the hot path allocates nothing.
+ */
+final class AsaEvent {
+    
+    /** The six digit ASA message ID, e.g. 302013. */
+    int messageId;
+    
+    /** The ASA connection ID ("Built inbound TCP connection 12345 ..."). */
+    long connection;
+    
+    /** True for IPv6 addresses, in which case {@link #ipv6} is valid. */
+    boolean v6;
+    
+    /** The outside address when {@link #v6} is false. */
+    int ipv4;
+    
+    /** The outside address when {@link #v6} is true, network byte order. */
+    final byte[] ipv6 = new byte[16];
+    
+    boolean isBuilt() {
+        return messageId == AsaMessageId.BUILT_TCP || messageId == AsaMessageId.BUILT_UDP;
+    }
+    
+    boolean isUdp() {
+        return messageId == AsaMessageId.BUILT_UDP || messageId == AsaMessageId.TEARDOWN_UDP;
+    }
+    
+    void clear() {
+        messageId = AsaMessageId.NONE;
+        connection = -1;
+        v6 = false;
+        ipv4 = 0;
+        Arrays.fill(ipv6, (byte) 0);
+    }
+    
+    /**
+     * @return the outside address. This never does a DNS lookup.
+     */
+    InetAddress toInetAddress() {
+        try {
+            if (v6) {
+                return InetAddress.getByAddress(ipv6.clone());
+            }
+            return InetAddress.getByAddress(new byte[] {
+                (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4 });
+        } catch (UnknownHostException ex) {
+            // only thrown for an illegal array length
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return messageId + " connection " + connection + " outside " + toInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,95 @@
+package com.wjholden.tcpmonitor;
+
+/**
+ * Finds the message ID in a raw ASA syslog datagram without decoding it.
+ * 
+ * ASA (and FTD) messages carry a tag like "%ASA-6-302013:" somewhere after the
+ * syslog header. We look for '%', a run of letters, '-', a one digit severity,
+ * '-', six digits and ':'. Everything here works on the raw bytes so that
+ * the listeners can throw away uninteresting traffic before paying for a
+ * String.
+ */
+final class AsaMessageId {
+    
+    static final int BUILT_TCP = 302013;
+    static final int TEARDOWN_TCP = 302014;
+    static final int BUILT_UDP = 302015;
+    static final int TEARDOWN_UDP = 302016;
+    
+    /** Returned when no message ID could be found. */
+    static final int NONE = -1;
+    
+    /** Length of the six digit ID plus the ':' that follows it. */
+    static final int LENGTH = 7;
+    
+    private AsaMessageId() {
+    }
+    
+    /**
+     * @return the six digit message ID, or {@link #NONE}.
+     */
+    static int find(byte[] buf, int offset, int length) {
+        int i = indexOf(buf, offset, length);
+        return i < 0 ? NONE : at(buf, i);
+    }
+    
+    /**
+     * @param i an index returned by {@link #indexOf}.
+     * @return the message ID found there.
+     */
+    static int at(byte[] buf, int i) {
+        int id = 0;
+        for (int k = i; k < i + 6; k++) {
+            id = id * 10 + (buf[k] - '0');
+        }
+        return id;
+    }
+    
+    /**
+     * Locate the message ID tag.
+     * 
+     * @return the index of the first of the six ID digits, or -1.
+     */
+    static int indexOf(byte[] buf, int offset, int length) {
+        final int limit = offset + length;
+        for (int i = offset; i < limit; i++) {
+            if (buf[i] != '%') {
+                continue;
+            }
+            int j = i + 1;
+            while (j < limit && isLetter(buf[j])) {
+                j++;
+            }
+            // we need "-L-DDDDDD:", which is ten bytes
+            if (j == i + 1 || j + 10 > limit) {
+                continue;
+            }
+            if (buf[j] != '-' || !isDigit(buf[j + 1]) || buf[j + 2] != '-' || buf[j + 9] != ':') {
+                continue;
+            }
+            boolean digits = true;
+            for (int k = j + 3; k < j + 9; k++) {
+                digits &= isDigit(buf[k]);
+            }
+            if (digits) {
+                return j + 3;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * @return true for the four connection build/teardown messages we map.
+     */
+    static boolean isConnection(int id) {
+        return id >= BUILT_TCP && id <= TEARDOWN_UDP;
+    }
+    
+    private static boolean isLetter(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+    }
+    
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -0,0 +1,301 @@
+package com.wjholden.tcpmonitor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts what we need from the four ASA connection messages:
+ * 
+ * <pre>
+ * %ASA-6-302013: Built {inbound|outbound} TCP connection id for interface:address/port ...
+ * %ASA-6-302014: Teardown TCP connection id for interface:address/port to ...
+ * %ASA-6-302015: Built {inbound|outbound} UDP connection id for interface:address/port ...
+ * %ASA-6-302016: Teardown UDP connection id for interface:address/port to ...
+ * </pre>
+ * 
+ * This works directly on the datagram bytes. The message ID is found once,
+ * the connection ID and outside address are read as primitives, and no
+ * Matcher, String or substring is created along the way. The old regular
+ * expressions survive in {@link RegexAsaParser} as a reference to check this
+ * one against; select it with -Dconnectionmap.parser=regex.
+ * 
+ * The outside interface is "outside" unless -Dconnectionmap.outside is set.
+ * Like the original regex, the last "name:" occurrence in the message wins.
+ */
+class AsaParser {
+    
+    private static final byte[] CONNECTION = "connection ".getBytes(StandardCharsets.US_ASCII);
+    
+    protected final String outside;
+    private final byte[] outsideTag;
+    
+    AsaParser(String outside) {
+        this.outside = outside;
+        this.outsideTag = (outside + ":").getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    static AsaParser create() {
+        String outside = Settings.getString("outside", "outside");
+        if ("regex".equals(Settings.getString("parser", "bytes"))) {
+            return new RegexAsaParser(outside);
+        }
+        return new AsaParser(outside);
+    }
+    
+    /**
+     * Parse one message.
+     * 
+     * @return true if this was a connection build/teardown with a usable
+     * outside address, in which case event holds the result.
+     */
+    boolean parse(byte[] buf, int offset, int length, AsaEvent event) {
+        event.clear();
+        final int limit = offset + length;
+        int i = AsaMessageId.indexOf(buf, offset, length);
+        if (i < 0) {
+            return false;
+        }
+        int id = AsaMessageId.at(buf, i);
+        if (!AsaMessageId.isConnection(id)) {
+            return false;
+        }
+        event.messageId = id;
+        i += AsaMessageId.LENGTH;
+        
+        int c = indexOf(buf, i, limit, CONNECTION);
+        if (c >= 0) {
+            long connection = 0;
+            int k = c + CONNECTION.length;
+            while (k < limit && buf[k] >= '0' && buf[k] <= '9') {
+                connection = connection * 10 + (buf[k++] - '0');
+            }
+            if (k > c + CONNECTION.length) {
+                event.connection = connection;
+            }
+        }
+        
+        int o = lastIndexOf(buf, i, limit, outsideTag);
+        if (o < 0) {
+            return false;
+        }
+        int start = o + outsideTag.length;
+        int end = start;
+        while (end < limit && buf[end] != '/') {
+            end++;
+        }
+        if (end == limit || end == start) {
+            return false;
+        }
+        return parseAddress(buf, start, end, event);
+    }
+    
+    /**
+     * Find the outside address of a connection message without decoding it
+     * or anything else, for {@link ParsePipeline} to choose a worker by. The
+     * messages about one host hash the same as long as the firewall writes
+     * its address the same way every time, which an ASA does.
+     * 
+     * @return a hash of the address text, or -1 if this isn't a connection
+     * build or teardown with an outside address.
+     */
+    long route(byte[] buf, int offset, int length) {
+        final int limit = offset + length;
+        int i = AsaMessageId.indexOf(buf, offset, length);
+        if (i < 0 || !AsaMessageId.isConnection(AsaMessageId.at(buf, i))) {
+            return -1;
+        }
+        int o = lastIndexOf(buf, i + AsaMessageId.LENGTH, limit, outsideTag);
+        if (o < 0) {
+            return -1;
+        }
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int k = o + outsideTag.length; k < limit && buf[k] != '/'; k++) {
+            hash = (hash ^ buf[k]) * 0x100000001b3L;
+        }
+        return hash & Long.MAX_VALUE;
+    }
+    
+    /**
+     * Read a textual IPv4 or IPv6 address from buf[start, end).
+     */
+    static boolean parseAddress(byte[] buf, int start, int end, AsaEvent event) {
+        for (int k = start; k < end; k++) {
+            if (buf[k] == ':') {
+                if (!parseIPv6(buf, start, end, event.ipv6)) {
+                    return false;
+                }
+                event.v6 = !isMappedIPv4(event.ipv6);
+                if (!event.v6) {
+                    event.ipv4 = ((event.ipv6[12] & 0xff) << 24) | ((event.ipv6[13] & 0xff) << 16)
+                            | ((event.ipv6[14] & 0xff) << 8) | (event.ipv6[15] & 0xff);
+                }
+                return true;
+            }
+        }
+        long ip = parseIPv4(buf, start, end);
+        if (ip < 0) {
+            return false;
+        }
+        event.v6 = false;
+        event.ipv4 = (int) ip;
+        return true;
+    }
+    
+    /**
+     * @return the address as an unsigned 32 bit value, or -1 if malformed.
+     */
+    static long parseIPv4(byte[] buf, int start, int end) {
+        long ip = 0;
+        int octets = 0;
+        int k = start;
+        while (k < end) {
+            int value = 0;
+            int digits = 0;
+            while (k < end && buf[k] >= '0' && buf[k] <= '9') {
+                value = value * 10 + (buf[k++] - '0');
+                if (++digits > 3) {
+                    return -1;
+                }
+            }
+            if (digits == 0 || value > 255) {
+                return -1;
+            }
+            ip = (ip << 8) | value;
+            octets++;
+            if (k < end) {
+                if (buf[k] != '.' || octets == 4) {
+                    return -1;
+                }
+                k++;
+                if (k == end) {
+                    return -1;
+                }
+            }
+        }
+        return octets == 4 ? ip : -1;
+    }
+    
+    /**
+     * Parse an IPv6 address, including "::" compression and a trailing dotted
+     * quad, into out.
+     */
+    static boolean parseIPv6(byte[] buf, int start, int end, byte[] out) {
+        int groups = 0;
+        int compress = -1;
+        int k = start;
+        if (end - start >= 2 && buf[k] == ':' && buf[k + 1] == ':') {
+            compress = 0;
+            k += 2;
+        }
+        while (k < end) {
+            if (groups == 8) {
+                return false;
+            }
+            int groupStart = k;
+            int value = 0;
+            while (k < end && hex(buf[k]) >= 0) {
+                value = (value << 4) | hex(buf[k++]);
+                if (k - groupStart > 4) {
+                    return false;
+                }
+            }
+            if (k < end && buf[k] == '.') {
+                // embedded IPv4, e.g. ::ffff:192.0.2.1
+                long ip = parseIPv4(buf, groupStart, end);
+                if (ip < 0 || groups > 6) {
+                    return false;
+                }
+                out[groups * 2] = (byte) (ip >>> 24);
+                out[groups * 2 + 1] = (byte) (ip >>> 16);
+                out[groups * 2 + 2] = (byte) (ip >>> 8);
+                out[groups * 2 + 3] = (byte) ip;
+                groups += 2;
+                k = end;
+                break;
+            }
+            if (k == groupStart) {
+                return false;
+            }
+            out[groups * 2] = (byte) (value >>> 8);
+            out[groups * 2 + 1] = (byte) value;
+            groups++;
+            if (k < end) {
+                if (buf[k] != ':') {
+                    return false;
+                }
+                k++;
+                if (k < end && buf[k] == ':') {
+                    if (compress >= 0) {
+                        return false;
+                    }
+                    compress = groups;
+                    k++;
+                } else if (k == end) {
+                    return false;
+                }
+            }
+        }
+        if (compress < 0) {
+            return groups == 8;
+        }
+        if (groups == 8) {
+            return false;
+        }
+        // slide the groups after "::" to the end and zero the gap
+        int tail = (groups - compress) * 2;
+        System.arraycopy(out, compress * 2, out, 16 - tail, tail);
+        for (int z = compress * 2; z < 16 - tail; z++) {
+            out[z] = 0;
+        }
+        return true;
+    }
+    
+    /**
+     * @return true for ::ffff:0:0/96, which we treat as plain IPv4.
+     */
+    private static boolean isMappedIPv4(byte[] ipv6) {
+        for (int i = 0; i < 10; i++) {
+            if (ipv6[i] != 0) {
+                return false;
+            }
+        }
+        return ipv6[10] == (byte) 0xff && ipv6[11] == (byte) 0xff;
+    }
+    
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+    
+    private static int indexOf(byte[] buf, int from, int limit, byte[] target) {
+        outer:
+        for (int i = from; i <= limit - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (buf[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private static int lastIndexOf(byte[] buf, int from, int limit, byte[] target) {
+        outer:
+        for (int i = limit - target.length; i >= from; i--) {
+            for (int j = 0; j < target.length; j++) {
+                if (buf[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,127 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+
+/**
+ * An alternative to the DatagramSocket listeners built on NIO.
+ * 
+ * Datagrams are received into a small pool of ByteBuffers that are reused
+ * forever, and every wakeup drains as many datagrams as the kernel has queued
+ * (up to the pool size) before going back to the selector. The buffers are
+ * heap buffers so that each datagram goes through the same byte[]
+ * {@link MessageFilter} and copy as the DatagramSocket listeners.
+ * 
+ * Enable with -Dconnectionmap.listener=channel. The kernel receive buffer
+ * (-Dconnectionmap.receive.buffer, bytes) is worth raising for bursty
+ * firewalls; Linux silently caps it at net.core.rmem_max.
+ */
+public class ChannelSyslogListener extends SyslogListener {
+    
+    private static final int MAX_DATAGRAM = 65535;
+    
+    private final InetAddress group;
+    private final int receiveBufferSize;
+    private final ByteBuffer[] pool;
+    private final InetAddress[] senders;
+    
+    /**
+     * @param group the multicast group to join, or null for plain unicast.
+     */
+    public ChannelSyslogListener(InetAddress group, int port, Source... sources) {
+        super(group == null ? "channel" : "channel-multicast", port, sources);
+        this.group = group;
+        this.receiveBufferSize = Settings.getInt("receive.buffer", 4 * 1024 * 1024);
+        pool = new ByteBuffer[Math.max(1, Settings.getInt("receive.batch", 32))];
+        senders = new InetAddress[pool.length];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = ByteBuffer.allocate(MAX_DATAGRAM);
+        }
+    }
+
+    @Override
+    public void run() {
+        StandardProtocolFamily family = group instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        try (DatagramChannel channel = DatagramChannel.open(family);
+                Selector selector = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            channel.bind(new InetSocketAddress(port));
+            if (group != null) {
+                channel.join(group, multicastInterface());
+            }
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int received;
+                do {
+                    received = 0;
+                    while (received < pool.length) {
+                        ByteBuffer buf = pool[received];
+                        buf.clear();
+                        SocketAddress sender = channel.receive(buf);
+                        if (sender == null) {
+                            break;
+                        }
+                        senders[received] = ((InetSocketAddress) sender).getAddress();
+                        buf.flip();
+                        received++;
+                    }
+                    for (int i = 0; i < received; i++) {
+                        ByteBuffer buf = pool[i];
+                        deliver(senders[i], buf.array(), buf.arrayOffset(), buf.limit());
+                    }
+                } while (received == pool.length);
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    /**
+     * MulticastSocket lets the OS pick an interface but DatagramChannel.join
+     * insists on one. Use -Dconnectionmap.multicast.interface if set, otherwise
+     * the first interface that is up and multicast capable.
+     */
+    private static NetworkInterface multicastInterface() throws SocketException {
+        String name = Settings.getString("multicast.interface", null);
+        if (name != null) {
+            NetworkInterface ni = NetworkInterface.getByName(name);
+            if (ni != null) {
+                return ni;
+            }
+            System.err.println("No such interface " + name);
+        }
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        NetworkInterface fallback = null;
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface ni = interfaces.nextElement();
+            if (ni.isUp() && ni.supportsMulticast()) {
+                if (!ni.isLoopback()) {
+                    return ni;
+                }
+                fallback = ni;
+            }
+        }
+        if (fallback == null) {
+            throw new SocketException("No multicast capable interface");
+        }
+        return fallback;
+    }
+}
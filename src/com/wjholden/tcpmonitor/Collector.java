@@ -0,0 +1,217 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Ships the grid to an {@link Aggregator}, so that the firewalls of a whole
+ * estate can be split between several processes and still be drawn as one
+ * map.
+ * 
+ * A collector is an ordinary ConnectionMap, with its own listeners, pipeline
+ * and GeoIP, started with -Dconnectionmap.collector.target=host:port. Every
+ * -Dconnectionmap.collector.interval milliseconds (default 1000) it sends a
+ * frame over TCP with the level 0 cells that changed since the last one,
+ * which it learns from a dirty bitmap of its own (see
+ * {@link ConnectionGrid#track}) so that its renderer, if any, isn't
+ * disturbed. A changed cell goes as a block with every finest cell under
+ * it, so the aggregator can zoom as far as the collector can.
+ * 
+ * <pre>
+ * hello    type 1, version, zoom, session (long), name length, name (UTF-8)
+ * key      type 2, sequence (long), time (long, epoch ms), count, then count * block
+ * delta    type 3, sequence (long), time (long, epoch ms), count, then count * block
+ * block    cell gap, then (tcp, udp) for each of the 4^zoom finest cells under it, row by row
+ * </pre>
+ * 
+ * Everything not marked long is a varint. A cell gap is from the previous
+ * block's level 0 cell, the first from -1, so the blocks of a busy region
+ * cost a byte each to address.
+ * 
+ * Counts are sent whole rather than as changes, so a frame means the same
+ * thing however often it is applied: a duplicate is harmless, and a frame
+ * that is lost only matters until its cells change again. Frames are
+ * numbered one up from 1 for the life of the process, whose start time is
+ * its session, so the aggregator can skip the ones it already has and
+ * notice any it missed.
+ * 
+ * Every connection starts with a hello and a key frame of every occupied
+ * cell, which replaces whatever the aggregator had from us before. A
+ * connection that fails is retried after 1 s, doubling up to 30 s, and
+ * resyncs the same way; the aggregator closes the connection when it sees a
+ * gap, which comes to the same thing. An empty delta still goes out every
+ * interval, so that the aggregator knows we are alive.
+ * 
+ * The name, -Dconnectionmap.collector.name (default the host name), must be
+ * unique among the collectors of one aggregator, and every collector must
+ * run with the aggregator's -Dconnectionmap.grid.zoom.
+ */
+final class Collector implements Runnable {
+    
+    static final int VERSION = 1;
+    static final byte HELLO = 1;
+    static final byte KEY = 2;
+    static final byte DELTA = 3;
+    
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 30000;
+    
+    private final ConnectionGrid grid;
+    private final int tracker;
+    private final String host;
+    private final int port;
+    private final String name;
+    private final long session = System.currentTimeMillis();
+    private final long interval = Math.max(10, Settings.getInt("collector.interval", 1000));
+    private final Metrics.Counter connects;
+    private final Metrics.Counter keys;
+    private final Metrics.Counter deltas;
+    private final Metrics.Counter blocks;
+    private final Metrics.Counter bytes;
+    
+    private long sequence;
+    private volatile boolean connected;
+    // the cells of the frame being sent, and one encoded block
+    private int[] cells = new int[1024];
+    private int count;
+    private final byte[] scratch = new byte[5 + (10 << (2 * ConnectionGrid.ZOOM))];
+    
+    /**
+     * @param target host:port of the aggregator.
+     */
+    Collector(ConnectionGrid grid, String target) throws IOException {
+        int colon = target.lastIndexOf(':');
+        try {
+            port = Integer.parseInt(target.substring(colon + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            throw new IOException("connectionmap.collector.target: no port in " + target);
+        }
+        host = colon > 0 ? target.substring(0, colon) : "localhost";
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (IOException ex) {
+            hostName = "collector";
+        }
+        name = Settings.getString("collector.name", hostName);
+        this.grid = grid;
+        tracker = grid.track();
+        connects = Metrics.counter("collector_connects_total", "Connections made to the aggregator.");
+        keys = Metrics.counter("collector_frames_total", "Frames sent to the aggregator.", "type", "key");
+        deltas = Metrics.counter("collector_frames_total", "Frames sent to the aggregator.", "type", "delta");
+        blocks = Metrics.counter("collector_blocks_total", "Changed cells sent to the aggregator.");
+        bytes = Metrics.counter("collector_bytes_total", "Bytes sent to the aggregator.");
+    }
+    
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), (int) MAX_BACKOFF);
+                socket.setTcpNoDelay(true);
+                connects.increment();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+                hello(out);
+                send(out, true);
+                connected = true;
+                backoff = MIN_BACKOFF;
+                while (true) {
+                    Thread.sleep(interval);
+                    send(out, false);
+                }
+            } catch (IOException ex) {
+                System.err.println("Collector: " + ex);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            connected = false;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        }
+    }
+    
+    private void hello(DataOutputStream out) throws IOException {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(HELLO);
+        int p = SnapshotLog.putVarint(scratch, 0, VERSION);
+        p = SnapshotLog.putVarint(scratch, p, ConnectionGrid.ZOOM);
+        out.write(scratch, 0, p);
+        out.writeLong(session);
+        out.write(scratch, 0, SnapshotLog.putVarint(scratch, 0, utf8.length));
+        out.write(utf8);
+    }
+    
+    private void send(DataOutputStream out, boolean key) throws IOException {
+        count = 0;
+        if (key) {
+            // Anything that changes after this is sent again in the next delta.
+            grid.drainDirty(tracker, cell -> { });
+            for (int cell = 0; cell < ConnectionGrid.CELLS; cell++) {
+                if (grid.count(0, cell) != 0) {
+                    list(cell);
+                }
+            }
+        } else {
+            grid.drainDirty(tracker, this::list);
+        }
+        out.writeByte(key ? KEY : DELTA);
+        out.writeLong(++sequence);
+        out.writeLong(System.currentTimeMillis());
+        int header = SnapshotLog.putVarint(scratch, 0, count);
+        out.write(scratch, 0, header);
+        long sent = 1 + 8 + 8 + header;
+        int side = 1 << ConnectionGrid.ZOOM;
+        int width = ConnectionGrid.width(ConnectionGrid.ZOOM);
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int cell = cells[i];
+            int p = SnapshotLog.putVarint(scratch, 0, cell - previous);
+            int first = ((cell / ConnectionGrid.WIDTH) << ConnectionGrid.ZOOM) * width
+                    + ((cell % ConnectionGrid.WIDTH) << ConnectionGrid.ZOOM);
+            for (int dy = 0; dy < side; dy++) {
+                for (int dx = 0; dx < side; dx++) {
+                    int fine = first + dy * width + dx;
+                    p = SnapshotLog.putVarint(scratch, p, grid.tcp(ConnectionGrid.ZOOM, fine));
+                    p = SnapshotLog.putVarint(scratch, p, grid.udp(ConnectionGrid.ZOOM, fine));
+                }
+            }
+            out.write(scratch, 0, p);
+            sent += p;
+            previous = cell;
+        }
+        out.flush();
+        (key ? keys : deltas).increment();
+        blocks.add(count);
+        bytes.add(sent);
+    }
+    
+    private void list(int cell) {
+        if (count == cells.length) {
+            cells = Arrays.copyOf(cells, 2 * count);
+        }
+        cells[count++] = cell;
+    }
+    
+    String name() {
+        return name;
+    }
+    
+    /**
+     * @return a line for {@link ConnectionMap#statistics}.
+     */
+    String statistics() {
+        return String.format("Collector %s: %s %s:%d, %d frames sent%n",
+                name, connected ? "connected to" : "trying", host, port, keys.get() + deltas.get());
+    }
+}
@@ -0,0 +1,326 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Open connection counts for every location on the map, kept separately for
+ * TCP and UDP, at several resolutions.
+ * 
+ * Connections are counted at the finest level, which has 2^{@link #ZOOM}
+ * times the resolution of the map in each direction
+ * (-Dconnectionmap.grid.zoom, 0 to 4, default 1). Above it is a pyramid of
+ * coarser levels, each a quarter the size of the one below, up to level 0
+ * which is the WIDTH * HEIGHT map itself. Every update adds to the cell it
+ * lands in at each level, so a level never has to be summed from the one
+ * below: a view at any zoom reads its own level, and a region can be
+ * searched from the top down, skipping everything under an empty cell.
+ * The pyramid costs a third more memory than the finest level alone, which
+ * is 8 * CELLS * 4^ZOOM bytes.
+ * 
+ * Each level is two flat atomic int arrays indexed by cell
+ * (y * width + x, with y counted up from the south pole). Updates are one
+ * atomic add or CAS per level, allocate nothing, and can come from any
+ * thread.
+ * 
+ * Every update also sets the bit of its level 0 cell in a dirty bitmap so
+ * that a renderer can redraw only what changed since it last looked, see
+ * {@link #drainDirty}. Anything else that wants to know what changed, such
+ * as a {@link Collector}, gets a bitmap of its own from {@link #track}.
+ * 
+ * Cells are at level 0 unless a method says otherwise, except that
+ * {@link #increment}, {@link #decrement} and {@link #add} take cells at the
+ * finest level.
+ */
+final class ConnectionGrid {
+    
+    static final int WIDTH = ConnectionMap.WIDTH;
+    static final int HEIGHT = ConnectionMap.HEIGHT;
+    static final int CELLS = WIDTH * HEIGHT;
+    /** The finest level. */
+    static final int ZOOM = Math.max(0, Math.min(4, Settings.getInt("grid.zoom", 1)));
+    
+    /**
+     * Receives the occupied cells from {@link #forEach}.
+     */
+    interface CellConsumer {
+        void accept(int x, int y, int tcp, int udp);
+    }
+    
+    // by level, ZOOM is the finest
+    private final AtomicIntegerArray[] tcp = new AtomicIntegerArray[ZOOM + 1];
+    private final AtomicIntegerArray[] udp = new AtomicIntegerArray[ZOOM + 1];
+    // a dirty bitmap per consumer, the renderer's first; see track()
+    private volatile AtomicLongArray[] dirty = { new AtomicLongArray((CELLS + 63) / 64) };
+    
+    ConnectionGrid() {
+        for (int level = 0; level <= ZOOM; level++) {
+            tcp[level] = new AtomicIntegerArray(cells(level));
+            udp[level] = new AtomicIntegerArray(cells(level));
+        }
+    }
+    
+    static int width(int level) {
+        return WIDTH << level;
+    }
+    
+    static int height(int level) {
+        return HEIGHT << level;
+    }
+    
+    static int cells(int level) {
+        return CELLS << (2 * level);
+    }
+    
+    /**
+     * @param pixel a pixel at the finest level, packed as (x &lt;&lt; 16) | y.
+     * @return the finest cell of the pixel.
+     */
+    static int cell(int pixel) {
+        return (pixel & 0xffff) * width(ZOOM) + (pixel >>> 16);
+    }
+    
+    /**
+     * @return the cell at the finest level in the middle of a level 0 cell,
+     * which is where connections we only know the level 0 cell of (from a
+     * snapshot) are counted.
+     */
+    static int centre(int cell) {
+        int half = (1 << ZOOM) >> 1;
+        return (((cell / WIDTH) << ZOOM) + half) * width(ZOOM) + ((cell % WIDTH) << ZOOM) + half;
+    }
+    
+    /**
+     * @param cell a cell at the finest level.
+     */
+    void increment(int cell, boolean isUdp) {
+        AtomicIntegerArray[] counts = isUdp ? udp : tcp;
+        int x = cell % width(ZOOM);
+        int y = cell / width(ZOOM);
+        for (int level = ZOOM; level >= 0; level--) {
+            int shift = ZOOM - level;
+            counts[level].incrementAndGet((y >> shift) * width(level) + (x >> shift));
+        }
+        markDirty((y >> ZOOM) * WIDTH + (x >> ZOOM));
+    }
+    
+    /**
+     * Decrement a count, but never below zero. A teardown for a connection we
+     * never saw built (we started late, or dropped the message) is ignored.
+     * The coarser levels are only decremented once the finest one was, so
+     * they can't go below zero either.
+     * 
+     * @param cell a cell at the finest level.
+     * @return true if the count was decremented.
+     */
+    boolean decrement(int cell, boolean isUdp) {
+        AtomicIntegerArray[] counts = isUdp ? udp : tcp;
+        int value;
+        do {
+            value = counts[ZOOM].get(cell);
+            if (value == 0) {
+                return false;
+            }
+        } while (!counts[ZOOM].compareAndSet(cell, value, value - 1));
+        int x = cell % width(ZOOM);
+        int y = cell / width(ZOOM);
+        for (int level = ZOOM - 1; level >= 0; level--) {
+            int shift = ZOOM - level;
+            counts[level].decrementAndGet((y >> shift) * width(level) + (x >> shift));
+        }
+        markDirty((y >> ZOOM) * WIDTH + (x >> ZOOM));
+        return true;
+    }
+    
+    /**
+     * Add to the counts of a cell, or take away with negative numbers, as
+     * when merging grids. Nothing stops a count going below zero, so only
+     * take away what was added. Not atomic across levels.
+     * 
+     * @param cell a cell at the finest level.
+     */
+    void add(int cell, int tcp, int udp) {
+        int x = cell % width(ZOOM);
+        int y = cell / width(ZOOM);
+        for (int level = ZOOM; level >= 0; level--) {
+            int shift = ZOOM - level;
+            int i = (y >> shift) * width(level) + (x >> shift);
+            this.tcp[level].addAndGet(i, tcp);
+            this.udp[level].addAndGet(i, udp);
+        }
+        markDirty((y >> ZOOM) * WIDTH + (x >> ZOOM));
+    }
+    
+    private void markDirty(int cell) {
+        final int word = cell >>> 6;
+        final long bit = 1L << cell;
+        for (AtomicLongArray bitmap : dirty) {
+            // Busy cells are usually already dirty, so look before writing.
+            if ((bitmap.get(word) & bit) == 0) {
+                bitmap.getAndAccumulate(word, bit, (a, b) -> a | b);
+            }
+        }
+    }
+    
+    /**
+     * Start another dirty bitmap, for a consumer that drains at its own
+     * pace. It starts out clean. Every bitmap costs CELLS / 8 bytes and one
+     * more read per update.
+     * 
+     * @return the tracker to pass to {@link #drainDirty(int, IntConsumer)}.
+     */
+    synchronized int track() {
+        AtomicLongArray[] bitmaps = Arrays.copyOf(dirty, dirty.length + 1);
+        bitmaps[dirty.length] = new AtomicLongArray(dirty[0].length());
+        dirty = bitmaps;
+        return bitmaps.length - 1;
+    }
+    
+    /**
+     * Report and clear every level 0 cell that changed since the last call,
+     * at any level. A cell that changes while this runs is either reported
+     * now or stays dirty for the next call; it is never lost. Cells are
+     * reported in increasing order.
+     */
+    void drainDirty(IntConsumer consumer) {
+        drainDirty(0, consumer);
+    }
+    
+    /**
+     * As {@link #drainDirty(IntConsumer)}, for a tracker from {@link #track}.
+     */
+    void drainDirty(int tracker, IntConsumer consumer) {
+        AtomicLongArray bitmap = dirty[tracker];
+        for (int word = 0; word < bitmap.length(); word++) {
+            if (bitmap.get(word) == 0) {
+                continue;
+            }
+            long bits = bitmap.getAndSet(word, 0);
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                consumer.accept((word << 6) + bit);
+            }
+        }
+    }
+    
+    /**
+     * Overwrite a level 0 cell's counts, as when showing a snapshot from
+     * history. Snapshots only have level 0, so the finer levels get the
+     * difference in the middle of the cell, see {@link #centre}. Not atomic
+     * with respect to increment() and decrement().
+     */
+    void set(int cell, int tcp, int udp) {
+        int t = tcp - this.tcp[0].getAndSet(cell, tcp);
+        int u = udp - this.udp[0].getAndSet(cell, udp);
+        if (t == 0 && u == 0) {
+            return;
+        }
+        int fine = centre(cell);
+        int x = fine % width(ZOOM);
+        int y = fine / width(ZOOM);
+        for (int level = 1; level <= ZOOM; level++) {
+            int shift = ZOOM - level;
+            int i = (y >> shift) * width(level) + (x >> shift);
+            this.tcp[level].addAndGet(i, t);
+            this.udp[level].addAndGet(i, u);
+        }
+        markDirty(cell);
+    }
+    
+    /**
+     * Copy every level 0 count into the given arrays, which must have
+     * {@link #CELLS} elements.
+     */
+    void copy(int[] tcp, int[] udp) {
+        for (int cell = 0; cell < CELLS; cell++) {
+            tcp[cell] = this.tcp[0].get(cell);
+            udp[cell] = this.udp[0].get(cell);
+        }
+    }
+    
+    int tcp(int cell) {
+        return tcp[0].get(cell);
+    }
+    
+    int udp(int cell) {
+        return udp[0].get(cell);
+    }
+    
+    /**
+     * @return the TCP connections in a cell of the given level.
+     */
+    int tcp(int level, int cell) {
+        return tcp[level].get(cell);
+    }
+    
+    /**
+     * @return the UDP connections in a cell of the given level.
+     */
+    int udp(int level, int cell) {
+        return udp[level].get(cell);
+    }
+    
+    int count(int cell) {
+        return tcp[0].get(cell) + udp[0].get(cell);
+    }
+    
+    /**
+     * @return the connections in a cell of the given level.
+     */
+    int count(int level, int cell) {
+        return tcp[level].get(cell) + udp[level].get(cell);
+    }
+    
+    void forEach(CellConsumer consumer) {
+        for (int cell = 0; cell < CELLS; cell++) {
+            int t = tcp[0].get(cell);
+            int u = udp[0].get(cell);
+            if (t != 0 || u != 0) {
+                consumer.accept(cell % WIDTH, cell / WIDTH, t, u);
+            }
+        }
+    }
+    
+    /**
+     * Report the occupied cells of one level inside a rectangle of that
+     * level, searching down from level 0 so that empty regions cost one
+     * read each however big they are.
+     */
+    void forEach(int level, int x, int y, int width, int height, CellConsumer consumer) {
+        int x1 = Math.min(x + width, width(level));
+        int y1 = Math.min(y + height, height(level));
+        if (x < 0 || y < 0 || x >= x1 || y >= y1) {
+            return;
+        }
+        for (int by = y >> level; by <= (y1 - 1) >> level; by++) {
+            for (int bx = x >> level; bx <= (x1 - 1) >> level; bx++) {
+                search(0, bx, by, level, x, y, x1, y1, consumer);
+            }
+        }
+    }
+    
+    private void search(int level, int x, int y, int target, int x0, int y0, int x1, int y1, CellConsumer consumer) {
+        int cell = y * width(level) + x;
+        int t = tcp[level].get(cell);
+        int u = udp[level].get(cell);
+        if (t == 0 && u == 0) {
+            return;
+        }
+        if (level == target) {
+            consumer.accept(x, y, t, u);
+            return;
+        }
+        // a child covers 2^shift target cells each way
+        int shift = target - level - 1;
+        for (int cy = 2 * y; cy < 2 * y + 2; cy++) {
+            for (int cx = 2 * x; cx < 2 * x + 2; cx++) {
+                if ((cx + 1) << shift > x0 && cx << shift < x1 && (cy + 1) << shift > y0 && cy << shift < y1) {
+                    search(level + 1, cx, cy, target, x0, y0, x1, y1, consumer);
+                }
+            }
+        }
+    }
+}
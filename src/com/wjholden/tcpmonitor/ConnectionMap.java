@@ -1,25 +1,14 @@
 package com.wjholden.tcpmonitor;
 
-import com.maxmind.geoip2.DatabaseReader;
-import com.maxmind.geoip2.exception.GeoIp2Exception;
-import com.maxmind.geoip2.model.CityResponse;
-import com.maxmind.geoip2.record.Location;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * GeoIP2-java library: https://github.com/maxmind/GeoIP2-java
@@ -30,25 +19,30 @@ import java.util.regex.Pattern;
  */
 public final class ConnectionMap {
     
-    // https://www.cisco.com/c/en/us/td/docs/security/asa/syslog/b_syslog/syslogs3.html
-    // %ASA-6-302013: Built {inbound|outbound} TCP connection
-    // %ASA-6-302014: Teardown TCP connection
-    // %ASA-6-302015: Built {inbound|outbound} UDP connection
-    // %ASA-6-302016: Teardown UDP connection
-    private static final String OPEN = ".*30201[35].+outside:(.+?)/.*";
-    private static final String CLOSE = ".*30201[46].+outside:(.+?)/.*";
-    private static final Pattern OPEN_PATTERN = Pattern.compile(OPEN);
-    private static final Pattern CLOSE_PATTERN = Pattern.compile(CLOSE);
     protected static final int WIDTH = 360 * 2;
     protected static final int HEIGHT = 180 * 2;
-    private static int GREEN = 0xff006000;
+    private static volatile int GREEN = 0xff006000;
 
-    private final Object lock = new Object();
-    private final Queue<String> queue = new LinkedList<>();
-    private final DatabaseReader reader;
-    private final Thread syslogMulticastThread, syslogUnicastThread;
-    private final Thread parseThread;
-    private final Map<Map.Entry<Integer,Integer>, Integer> map;
+    private final List<Source> sources;
+    private final List<Thread> listeners = new ArrayList<>();
+    private final GeoDatabase database;
+    private final GeoDatabase asns;
+    private final ParsePipeline pipeline;
+    private final ConnectionGrid grid;
+    private final MapRenderer renderer;
+    private final SnapshotLog history;
+    // shipping our grid elsewhere, or merging others into it, if either
+    private final Collector collector;
+    private final Aggregator aggregator;
+    
+    // the one source we are showing, or null for all of them
+    private volatile Source selected;
+    private final MapRenderer[] sourceRenderers;
+    
+    // what we are showing from the history, if anything
+    private volatile long rewound;
+    private ConnectionGrid pastGrid;
+    private volatile MapRenderer pastRenderer;
     
     /**
      * See https://twitter.com/wjholdentech/status/1169124304501563394.
@@ -82,8 +76,10 @@ public final class ConnectionMap {
      * close(out)
      * }
      * </pre>
+     * 
+     * The build packs these text files into bitmaps, see {@link LandMask}.
      */
-    private final List<List<Integer>> earth = new ArrayList<>();
+    private final List<LandMask> earth = new ArrayList<>();
    
     /**
      * This is a useless "feature" that I wanted to leave in for fun.
@@ -96,172 +92,269 @@ public final class ConnectionMap {
      * 1 has too much land, 2 has too much water, and 3 is "just right" where
      * I rounded the grayscale pixels back to what they were supposed to be.
      */
-    protected static int EARTH = 2;
+    protected static volatile int EARTH = 2;
     
-    int xoffset = 0;
-    int yoffset = 0;
+    /**
+     * Draw a heat map of connection density instead of one white pixel per
+     * occupied location. Toggle with 'm'.
+     */
+    protected static volatile boolean HEAT = Settings.getBoolean("heat", false);
+    
+    // the view is changed on the EDT and rendered elsewhere; the offsets
+    // are in cells of the level being shown, see ConnectionGrid
+    volatile int zoom = 0;
+    volatile int xoffset = 0;
+    volatile int yoffset = 0;
     
     // The magic numbers +20 and +1 are to correct a data problem. The
     // pixels of the map are not correctly aligned with true lines of
     // latitude and longitude. Change these constants if using a different map.
-    static int mapxoffset = 20;
-    static int mapyoffset = 1;
+    static volatile int mapxoffset = 20;
+    static volatile int mapyoffset = 1;
     
     public void start() {
-        syslogMulticastThread.start();
-        //syslogUnicastThread.start();
-        parseThread.start();
-    }
-    
-    private void increment(Map.Entry<Integer,Integer> location) {
-        int value = 1;
-        if (map.containsKey(location)) {
-            value += map.get(location);
+        for (Thread listener : listeners) {
+            listener.start();
+        }
+        pipeline.start();
+        if (collector != null) {
+            Thread thread = new Thread(collector, "Collector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (aggregator != null) {
+            // keeps a headless aggregator running, like the listeners
+            new Thread(aggregator, "Aggregator").start();
+        }
+        if (history != null) {
+            long interval = Math.max(1, Settings.getInt("snapshot.interval", 60));
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Snapshots");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshots.scheduleAtFixedRate(this::snapshot, interval, interval, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                snapshots.shutdownNow();
+                snapshot();
+                try {
+                    history.close();
+                } catch (IOException ex) {
+                    System.err.println(ex);
+                }
+            }));
         }
-        map.put(location, value);
     }
     
-    private void decrement(Map.Entry<Integer,Integer> location) {
-        if (map.containsKey(location)) {
-            int value = map.get(location);
-            if (value == 1) {
-                map.remove(location);
-            } else {
-                map.put(location, value - 1);
-            }
+    private void snapshot() {
+        try {
+            history.append(System.currentTimeMillis(), grid);
+        } catch (IOException | RuntimeException ex) {
+            // an exception would cancel the schedule
+            System.err.println(ex);
         }
     }
     
     public ConnectionMap() throws URISyntaxException, IOException {
-        //URL url = getClass().getResource("/resources/GeoLite2-City.mmdb");
-        //File database = new File(url.toURI());
-        //reader = new DatabaseReader.Builder(database).build();
+        database = new GeoDatabase();
         
-        reader = new DatabaseReader.Builder(getClass().getResourceAsStream("/resources/GeoLite2-City.mmdb")).build();
+        // Only needed to count the top ASNs, see HeavyHitters.
+        GeoDatabase asnDatabase = null;
+        try {
+            asnDatabase = new GeoDatabase("geoip.asn.database", "/resources/GeoLite2-ASN.mmdb");
+        } catch (IOException ex) {
+            System.err.println("ASNs won't be counted: " + ex.getMessage());
+        }
+        asns = asnDatabase;
         
-        map = new ConcurrentHashMap<>();
+        grid = new ConnectionGrid();
+        renderer = new MapRenderer(grid);
         
-        syslogMulticastThread = new Thread(new MulticastSyslogListener("239.5.1.4", 514, queue, lock));
-        syslogMulticastThread.setDaemon(false);
+        // Every source has its own ring buffer and grid, see Source.
+        sources = Source.configure();
+        sourceRenderers = new MapRenderer[sources.size()];
+        for (SyslogListener listener : Source.listeners(sources)) {
+            Thread thread = new Thread(listener, listener.name);
+            // the listeners keep the headless map running
+            thread.setDaemon(false);
+            listeners.add(thread);
+        }
         
-        syslogUnicastThread = new Thread(new UnicastSyslogListener(514, queue, lock));
-        syslogUnicastThread.setDaemon(true);
+        pipeline = new ParsePipeline(sources.toArray(new Source[0]), database, asns, grid);
         
-        parseThread = new Thread(() -> {
-            while (true) {
-                synchronized(lock) {
-                    try {
-                        lock.wait();
-                        while (!queue.isEmpty()) {
-                            String line = queue.remove();
-                            Matcher openMatcher = OPEN_PATTERN.matcher(line);
-                            if (openMatcher.matches()) {
-                                Map.Entry<Integer,Integer> location = classify(getLocation(openMatcher.group(1)));
-                                if (location != null) {
-                                    increment(location);
-                                }
-                            } else {
-                                Matcher closeMatcher = CLOSE_PATTERN.matcher(line);
-                                if (closeMatcher.matches()) {
-                                    Map.Entry<Integer,Integer> location = classify(getLocation(closeMatcher.group(1)));
-                                    decrement(location);
-                                }
-                            }
-                        }
-                    } catch (InterruptedException ex) {
-                        System.err.println(ex);
-                        return;
-                    } catch (GeoIp2Exception ex) {
-                        System.err.println(ex);
-                    }
-                }
+        // -Dconnectionmap.collector.target and -Dconnectionmap.aggregator.port
+        // spread the work over several processes, see Collector
+        String target = Settings.getString("collector.target", null);
+        collector = target == null ? null : new Collector(grid, target);
+        int port = Settings.getInt("aggregator.port", 0);
+        aggregator = port > 0 ? new Aggregator(grid, port) : null;
+        
+        // -Dconnectionmap.snapshot.dir turns on history, see SnapshotLog
+        SnapshotLog log = null;
+        try {
+            log = SnapshotLog.open();
+            SnapshotLog.Snapshot latest = log == null ? null : log.latest();
+            // an aggregator gets its collectors' restored connections from them
+            if (latest != null && aggregator == null && System.currentTimeMillis() - latest.time
+                    < TimeUnit.SECONDS.toMillis(Settings.getInt("connection.ttl", 3600))) {
+                System.err.println("Restored " + pipeline.restore(latest) + " connections");
             }
-        });
-        parseThread.setDaemon(true);
+        } catch (IOException ex) {
+            System.err.println("History is off: " + ex);
+        }
+        history = log;
+        
+        Metrics.registerMBean();
         
-        earth.add(readMap("/resources/earth1.txt"));
-        earth.add(readMap("/resources/earth2.txt"));
-        earth.add(readMap("/resources/earth3.txt"));
+        earth.add(LandMask.load("/resources/earth1"));
+        earth.add(LandMask.load("/resources/earth2"));
+        earth.add(LandMask.load("/resources/earth3"));
     }
     
     /**
-     * Read a list of space-separated (x,y) coordinates from the earth.txt file
-     * included as a project resource. Each (x,y) coordinate pair is composed into
-     * a single integer. The 16 most significant bits represent x and the 16
-     * least significant bits represent y. Thus, a different input file can be
-     * used for resolutions up to 65536x65536 (!!!) without any code changes.
-     * 
-     * It is expected that the (x,y) coordinates are presented in the same domain
-     * that this program renders output. Each pixel is considered "land", and each
-     * pixel not presented is not considered land. Thus, the GUI needs only iterate
-     * over all coordinates presented and color the corresponding pixel green.
-     * 
-     * @return an immutable set of integers that are the composition of (x,y)
-     * coordinates in the GUI's pixel space representing land.
+     * Run without the Swing GUI, serving the map over HTTP instead. See
+     * {@link MapServer}. The port is -Dconnectionmap.http.port (default 8080).
+     * Several of these can share an estate's firewalls between them as
+     * collectors for one aggregator, see {@link Collector}.
      */
-    private List<Integer> readMap(String resource) {
-        final List<Integer> e = new ArrayList<>();
-        
-        Scanner sc = new Scanner(getClass().getResourceAsStream(resource));
-        while (sc.hasNextInt()) {
-            final int x = sc.nextInt();
-            final int y = sc.nextInt();
-            e.add((x << 16) | y);
+    public static void main(String[] args) throws UnknownHostException, URISyntaxException, IOException {
+        System.setProperty("java.awt.headless", "true");
+        ConnectionMap fireGuard = new ConnectionMap();
+        fireGuard.start();
+        new MapServer(fireGuard, Settings.getInt("http.port", 8080)).start();
+    }
+    
+    /**
+     * @return a human readable summary of the queues and lookup caches.
+     */
+    public String statistics() {
+        String statistics = "";
+        for (Source source : sources) {
+            statistics += String.format("%s: %d queued, %d dropped%n", source.name, source.queue.size(), source.queue.dropped());
         }
-        
-        return Collections.unmodifiableList(e);
+        if (aggregator != null) {
+            statistics += aggregator.statistics();
+        }
+        if (collector != null) {
+            statistics += collector.statistics();
+        }
+        statistics += pipeline.statistics();
+        if (history != null && history.first() >= 0) {
+            statistics += String.format("%nHistory: %tF %<tR to %tF %<tR", history.first(), history.last());
+        }
+        return statistics;
     }
     
-    private double[] getLocation(String address) throws GeoIp2Exception {
-        try {
-            InetAddress ipAddress = InetAddress.getByName(address);
-            CityResponse response = reader.city(ipAddress);
-            Location location = response.getLocation();
-            return new double[] { location.getLatitude(), location.getLongitude() };
-        } catch (IOException ex) {
-            return null;
+    public BufferedImage renderImage() {
+        if (rewound != 0) {
+            synchronized (this) {
+                return pastRenderer.render(earth.get(EARTH), GREEN, zoom, xoffset, yoffset, mapxoffset, mapyoffset, HEAT);
+            }
         }
+        return liveRenderer().render(earth.get(EARTH), GREEN, zoom, xoffset, yoffset, mapxoffset, mapyoffset, HEAT);
     }
     
-    private Map.Entry<Integer,Integer> classify(double[] location) {
-        Integer latitude = (int)Math.round(location[0] + 90) * HEIGHT / 180;
-        
-        Integer longitude = (int)Math.round(location[1] + 180) * WIDTH / 360;
-        
-        return new AbstractMap.SimpleImmutableEntry<>(longitude, latitude);
+    /**
+     * @return the renderer for the selected source, or for all of them.
+     */
+    private MapRenderer liveRenderer() {
+        Source source = selected;
+        if (source == null) {
+            return renderer;
+        }
+        synchronized (sourceRenderers) {
+            if (sourceRenderers[source.id] == null) {
+                sourceRenderers[source.id] = new MapRenderer(source.grid);
+            }
+            return sourceRenderers[source.id];
+        }
     }
     
-    public static void main(String[] args) throws UnknownHostException, URISyntaxException, IOException {
-        ConnectionMap fireGuard = new ConnectionMap();
-        fireGuard.start();
+    /**
+     * Show the next source on its own, or all of them after the last one.
+     * 
+     * @return the source now shown, or null for all of them.
+     */
+    Source nextSource() {
+        Source source = selected;
+        int next = source == null ? 0 : source.id + 1;
+        selected = next < sources.size() ? sources.get(next) : null;
+        return selected;
     }
     
-    public BufferedImage renderImage() {
-        final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
-                
-        earth.get(EARTH).forEach(pixel -> {
-            final int x = pixel >> 16;
-            final int y = pixel & 0x0000ffff;
-            
-            // I was surprised to learn that the alpha channel actually comes first.
-            // The bytes of the integer are AA|RR|GG|BB.
-            image.setRGB((x + xoffset + mapxoffset) % WIDTH, (y + yoffset - mapyoffset) % HEIGHT, ConnectionMap.GREEN);
-        });
-        
-        if (!map.isEmpty()) {
-            // yeah I hate it too, but we need to normalize values relative to each other.
-            // int max = Collections.max(map.entrySet(), Comparator.comparingInt(Map.Entry::getValue)).getValue();
-            
-            map.forEach((location, intensity) -> {               
-                // The heat map idea didn't work as well as I had hoped. For now,
-                // this is just a simple white/black map of pixels.
-                final int x = location.getKey();
-                final int y = ConnectionMap.HEIGHT - location.getValue();
-                image.setRGB((x + xoffset) % WIDTH, (y + yoffset) % HEIGHT, 0xffffffff);
-            });
+    /**
+     * @return the source being shown, or null for all of them.
+     */
+    Source selected() {
+        return selected;
+    }
+    
+    List<Source> sources() {
+        return sources;
+    }
+    
+    /**
+     * @return the n remote hosts, countries or ASNs that built the most
+     * connections over the window, see {@link HeavyHitters}.
+     */
+    List<HeavyHitters.Hitter> top(HeavyHitters.Dimension dimension, HeavyHitters.Window window, int n) {
+        return pipeline.top(dimension, window, n);
+    }
+    
+    /**
+     * Show the map as it was, relative to what is shown now. Moving past the
+     * newest snapshot goes back to live.
+     * 
+     * @return the time of the snapshot being shown, or 0 if live.
+     */
+    synchronized long rewind(long milliseconds) throws IOException {
+        if (history == null || history.first() < 0) {
+            return 0;
         }
-        
-        return image;
+        long from = rewound == 0 ? System.currentTimeMillis() : rewound;
+        long to = Math.max(history.first(), from + milliseconds);
+        if (to > history.last()) {
+            rewound = 0;
+            return 0;
+        }
+        SnapshotLog.Snapshot snapshot = history.read(to);
+        if (pastGrid == null) {
+            pastGrid = new ConnectionGrid();
+            pastRenderer = new MapRenderer(pastGrid);
+        }
+        for (int cell = 0; cell < ConnectionGrid.CELLS; cell++) {
+            pastGrid.set(cell, snapshot.tcp[cell], snapshot.udp[cell]);
+        }
+        rewound = snapshot.time;
+        return rewound;
+    }
+    
+    /**
+     * @return the version of whichever renderer {@link #renderImage} last
+     * used, see {@link MapRenderer#version}.
+     */
+    long version() {
+        MapRenderer past = pastRenderer;
+        return rewound != 0 && past != null ? past.version() : liveRenderer().version();
+    }
+    
+    /**
+     * @return the time of the snapshot being shown, or 0 if live.
+     */
+    long rewound() {
+        return rewound;
+    }
+    
+    SnapshotLog history() {
+        return history;
+    }
+    
+    ConnectionGrid grid() {
+        return grid;
+    }
+    
+    MapRenderer renderer() {
+        return renderer;
     }
     
     protected static void moreGreen() {
@@ -278,6 +371,39 @@ public final class ConnectionMap {
         }
     }
     
+    /**
+     * Zoom in (levels &gt; 0) or out, keeping the middle of the view where
+     * it is. Each level doubles the resolution, down to the finest level of
+     * the grid.
+     * 
+     * @return the level now shown.
+     */
+    synchronized int zoom(int levels) {
+        int to = Math.max(0, Math.min(ConnectionGrid.ZOOM, zoom + levels));
+        int x = xoffset;
+        int y = yoffset;
+        for (int level = zoom; level < to; level++) {
+            x = 2 * x - WIDTH / 2;
+            y = 2 * y - HEIGHT / 2;
+        }
+        for (int level = zoom; level > to; level--) {
+            x = Math.floorDiv(x + WIDTH / 2, 2);
+            y = Math.floorDiv(y + HEIGHT / 2, 2);
+        }
+        xoffset = Math.floorMod(x, ConnectionGrid.width(to));
+        yoffset = Math.floorMod(y, ConnectionGrid.height(to));
+        zoom = to;
+        return to;
+    }
+    
+    /**
+     * Pan by whole cells of level 0, however far we are zoomed in.
+     */
+    synchronized void pan(int dx, int dy) {
+        xoffset = Math.floorMod(xoffset + (dx << zoom), ConnectionGrid.width(zoom));
+        yoffset = Math.floorMod(yoffset + (dy << zoom), ConnectionGrid.height(zoom));
+    }
+    
     protected static void mapOffsetX(int dx) {
         mapxoffset += dx;
     }
@@ -2,7 +2,6 @@ package com.wjholden.tcpmonitor;
 
 import java.awt.Color;
 import java.awt.FlowLayout;
-import java.awt.event.ActionEvent;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
@@ -13,26 +12,35 @@ import java.net.URISyntaxException;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
-import javax.swing.Timer;
 
 public final class ConnectionMapFrame extends JFrame implements KeyListener {
     
-    private static final int TIMER_DELAY_MILLISECONDS = 1000;
+    private static final long MINUTE = 60000;
     private ConnectionMapPanel panel;
-    private final Timer timer;
     
     /**
-     * First there was an unpleasant snap after the initial timer delay.
-     * Now there is a weird artifact at the bottom of the screen when maximized.
+     * There is a weird artifact at the bottom of the screen when maximized.
      * There is some misalignment in the padding between the JFrame and JPanel.
      */
     private static final int PADDING = 10;
     
+    // what the title says we are showing
+    private long shown;
+    private String source;
+    
     private final static String HELP
             = "a: show about\n"
             + "f: toggle fullscreen\n"
             + "h: show this help\n"
+            + "i: show statistics\n"
+            + "m: toggle heat map\n"
+            + "[ ]: back/forward a minute in history\n"
+            + "{ }: back/forward an hour in history\n"
+            + "l: back to live\n"
+            + "n: show the next syslog source on its own, then all of them\n"
+            + "t: show the top hosts, countries and ASNs over 1m, 15m, 1h, then hide them\n"
             + "q: quit\n"
+            + "+ -: zoom in/out around the middle\n"
             + "\u2191\u2193\u2190\u2192: pan everything\n"
             + "wasd: pan map only\n"
             + "1-3: select map\n"
@@ -41,8 +49,6 @@ public final class ConnectionMapFrame extends JFrame implements KeyListener {
     
     public ConnectionMapFrame() {
         setLayout(new FlowLayout());
-        timer = new javax.swing.Timer(TIMER_DELAY_MILLISECONDS, this::updateScreen);
-        
         addComponentListener(new ComponentAdapter() {
            @Override
            public void componentResized(ComponentEvent e) {
@@ -57,10 +63,6 @@ public final class ConnectionMapFrame extends JFrame implements KeyListener {
         });
     }
     
-    private void updateScreen(ActionEvent e) {
-        panel.repaint();
-    }
-    
     private static void createAndShowGui() {
         ConnectionMapFrame f = new ConnectionMapFrame();
         try {
@@ -75,7 +77,6 @@ public final class ConnectionMapFrame extends JFrame implements KeyListener {
         f.pack();
         f.setVisible(true);
         f.addKeyListener(f);
-        f.timer.start();
         f.setTitle("Connection Map");
     }
     
@@ -101,6 +102,9 @@ public final class ConnectionMapFrame extends JFrame implements KeyListener {
             case '3':
                 ConnectionMap.EARTH = 2;
                 break;
+            case 'm':
+                ConnectionMap.HEAT = !ConnectionMap.HEAT;
+                break;
             case 'g':
                 ConnectionMap.lessGreen();
                 break;
@@ -122,9 +126,63 @@ public final class ConnectionMapFrame extends JFrame implements KeyListener {
             case 'h':
                 JOptionPane.showMessageDialog(this, HELP, "Help", JOptionPane.QUESTION_MESSAGE);
                 break;
+            case 'i':
+                JOptionPane.showMessageDialog(this, panel.statistics(), "Statistics", JOptionPane.INFORMATION_MESSAGE);
+                break;
+            case '[':
+                rewind(-MINUTE);
+                break;
+            case ']':
+                rewind(MINUTE);
+                break;
+            case '{':
+                rewind(-60 * MINUTE);
+                break;
+            case '}':
+                rewind(60 * MINUTE);
+                break;
+            case 'l':
+                rewind(Long.MAX_VALUE / 2);
+                break;
+            case 'n':
+                Source next = panel.nextSource();
+                source = next == null ? null : next.name;
+                title();
+                break;
+            case 't':
+                panel.nextTop();
+                break;
+            case '+':
+            case '=':
+                panel.zoom(1);
+                break;
+            case '-':
+                panel.zoom(-1);
+                break;
+        }
+        panel.wake();
+    }
+    
+    private void rewind(long milliseconds) {
+        try {
+            shown = panel.rewind(milliseconds);
+            title();
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, ex, "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    /**
+     * History is of all sources, so the source is only named when live.
+     */
+    private void title() {
+        if (shown != 0) {
+            setTitle(String.format("Connection Map %tF %<tR", shown));
+        } else {
+            setTitle(source == null ? "Connection Map" : "Connection Map: " + source);
+        }
+    }
+    
     @Override
     public void keyPressed(KeyEvent e) {
         switch (e.getKeyCode()) {
@@ -141,7 +199,7 @@ public final class ConnectionMapFrame extends JFrame implements KeyListener {
                 panel.panY(1);
                 break;
         }
-        repaint();
+        panel.wake();
     }
 
     @Override
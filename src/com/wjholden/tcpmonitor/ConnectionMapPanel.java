@@ -2,23 +2,39 @@ package com.wjholden.tcpmonitor;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.List;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 public final class ConnectionMapPanel extends JPanel {
     
     private final ConnectionMap fireguard;
     private final AffineTransform transform;
+    private final RenderLoop renderLoop;
+    
+    private static final int TOP = 10;
+    private static final Font TOP_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color TOP_BACKGROUND = new Color(0, 0, 0, 0xc0);
+    // the heavy hitters window shown over the map, or null
+    private HeavyHitters.Window top;
+    // the counts change even when the map doesn't
+    private final Timer topTimer = new Timer(1000, e -> repaint());
     
     public ConnectionMapPanel() throws URISyntaxException, IOException {
         fireguard = new ConnectionMap();
         fireguard.start();
         transform = new AffineTransform();
+        // repaint() is safe from any thread and Swing coalesces the requests
+        renderLoop = new RenderLoop(fireguard, this::repaint);
+        renderLoop.start();
     }
 
     @Override
@@ -30,12 +46,75 @@ public final class ConnectionMapPanel extends JPanel {
     @Override
     protected void paintComponent(Graphics g) {
         Graphics2D g2 = (Graphics2D) g;
-        BufferedImage image = fireguard.renderImage();
+        BufferedImage image = renderLoop.front();
         
         g2.setPaint(Color.BLACK);
         g2.fillRect(0, 0, (int) (ConnectionMap.WIDTH * transform.getScaleX()),
             (int) (ConnectionMap.HEIGHT * transform.getScaleY()));
-        g2.drawImage(image, transform, null);
+        if (image != null) {
+            g2.drawImage(image, transform, null);
+        }
+        if (top != null) {
+            paintTop(g2, top);
+        }
+    }
+    
+    /**
+     * The top hosts, countries and ASNs, one column each, in the top left
+     * corner. Queries take microseconds, so we ask on every paint.
+     */
+    private void paintTop(Graphics2D g2, HeavyHitters.Window window) {
+        HeavyHitters.Dimension[] dimensions = HeavyHitters.Dimension.values();
+        String[][] columns = new String[dimensions.length][];
+        for (HeavyHitters.Dimension dimension : dimensions) {
+            List<HeavyHitters.Hitter> hitters = fireguard.top(dimension, window, TOP);
+            String[] column = new String[TOP + 1];
+            column[0] = dimension.name().toLowerCase() + " (" + window.label + ")";
+            for (int i = 0; i < hitters.size(); i++) {
+                column[i + 1] = String.format("%-22s %7d", hitters.get(i).name(), hitters.get(i).count);
+            }
+            columns[dimension.ordinal()] = column;
+        }
+        
+        g2.setFont(TOP_FONT);
+        FontMetrics metrics = g2.getFontMetrics();
+        int line = metrics.getHeight();
+        int column = metrics.stringWidth("0") * 32;
+        int margin = line / 2;
+        g2.setPaint(TOP_BACKGROUND);
+        g2.fillRect(margin, margin, column * columns.length + 2 * margin, line * (TOP + 1) + 2 * margin);
+        g2.setPaint(Color.WHITE);
+        for (int c = 0; c < columns.length; c++) {
+            for (int r = 0; r <= TOP; r++) {
+                if (columns[c][r] != null) {
+                    g2.drawString(columns[c][r], 2 * margin + c * column, 2 * margin + r * line + metrics.getAscent());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Show the top talkers over the next window: 1m, 15m, 1h, then off.
+     * 
+     * @return the window now shown, or null for off.
+     */
+    protected HeavyHitters.Window nextTop() {
+        HeavyHitters.Window[] windows = HeavyHitters.Window.values();
+        top = top == null ? windows[0] : top.ordinal() + 1 < windows.length ? windows[top.ordinal() + 1] : null;
+        if (top == null) {
+            topTimer.stop();
+        } else {
+            topTimer.start();
+        }
+        repaint();
+        return top;
+    }
+    
+    /**
+     * The view changed: render a new frame now.
+     */
+    protected void wake() {
+        renderLoop.wake();
     }
     
     protected void setFrameSize(double x, double y) {
@@ -43,11 +122,36 @@ public final class ConnectionMapPanel extends JPanel {
         transform.scale(x / ConnectionMap.WIDTH, y / ConnectionMap.HEIGHT);
     }
     
+    protected String statistics() {
+        return fireguard.statistics();
+    }
+    
+    /**
+     * @return the time now being shown, or 0 if live.
+     */
+    protected long rewind(long milliseconds) throws IOException {
+        return fireguard.rewind(milliseconds);
+    }
+    
+    /**
+     * @return the source now shown on its own, or null for all of them.
+     */
+    protected Source nextSource() {
+        return fireguard.nextSource();
+    }
+    
     protected void panX(int amount) {
-        fireguard.xoffset = (fireguard.xoffset + amount + ConnectionMap.WIDTH) % ConnectionMap.WIDTH;
+        fireguard.pan(amount, 0);
     }
     
     protected void panY(int amount) {
-        fireguard.yoffset = (fireguard.yoffset + amount + ConnectionMap.HEIGHT) % ConnectionMap.HEIGHT;
+        fireguard.pan(0, amount);
+    }
+    
+    /**
+     * @return the level of the grid now shown, 0 for the whole world.
+     */
+    protected int zoom(int levels) {
+        return fireguard.zoom(levels);
     }
 }
@@ -0,0 +1,192 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.Arrays;
+
+/**
+ * Open connections keyed by ASA connection ID.
+ * 
+ * When a connection is built we remember which cell it was counted in and
+ * whether it was UDP, so that the teardown can be uncounted without looking
+ * the address up again. This is an open addressing hash table with linear
+ * probing over primitive arrays; removal uses backward shift deletion so
+ * there are no tombstones to clean up. The table only allocates when it
+ * grows.
+ * 
+ * Teardowns get lost (we drop them, or the ASA does), so every entry also
+ * records when it was built and {@link #expire} removes anything older than
+ * the idle TTL.
+ * 
+ * Not thread safe: each pipeline worker has its own table.
+ */
+final class ConnectionTable {
+    
+    /** Value returned by {@link #remove} when the connection isn't known. */
+    static final int ABSENT = -1;
+    
+    /**
+     * Receives entries removed by {@link #expire}.
+     */
+    interface Expiry {
+        void expired(long connection, int cell, boolean udp);
+    }
+    
+    private static final long EMPTY = -1;
+    
+    private long[] keys;
+    private int[] values;
+    private long[] built;
+    private int size;
+    
+    ConnectionTable(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+        allocate(capacity);
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        built = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+    
+    private static int value(int cell, boolean udp) {
+        return (cell << 1) | (udp ? 1 : 0);
+    }
+    
+    static int cell(int value) {
+        return value >>> 1;
+    }
+    
+    static boolean isUdp(int value) {
+        return (value & 1) != 0;
+    }
+    
+    private int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & (keys.length - 1);
+    }
+    
+    /**
+     * Remember a connection.
+     * 
+     * @param connection the ASA connection ID, which must not be negative.
+     * @return the value previously stored for this ID, or {@link #ABSENT}.
+     */
+    int put(long connection, int cell, boolean udp, long now) {
+        if (size * 2 >= keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int i = slot(connection);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == connection) {
+                int previous = values[i];
+                values[i] = value(cell, udp);
+                built[i] = now;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = connection;
+        values[i] = value(cell, udp);
+        built[i] = now;
+        size++;
+        return ABSENT;
+    }
+    
+    /**
+     * Forget a connection.
+     * 
+     * @return the stored value (see {@link #cell} and {@link #isUdp}), or
+     * {@link #ABSENT} if we never saw it built.
+     */
+    int remove(long connection) {
+        int mask = keys.length - 1;
+        int i = slot(connection);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == connection) {
+                int value = values[i];
+                delete(i);
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return ABSENT;
+    }
+    
+    /**
+     * Empty slot i and shift any following entries that were displaced past
+     * it back towards their home slots.
+     */
+    private void delete(int i) {
+        int mask = keys.length - 1;
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY) {
+                break;
+            }
+            int home = slot(keys[j]);
+            // can the entry at j move into the hole? Only if its home slot
+            // is not (cyclically) between the hole and j.
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                built[hole] = built[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+    
+    /**
+     * Remove every connection built before the cutoff.
+     * 
+     * @return the number of connections expired.
+     */
+    int expire(long cutoff, Expiry expiry) {
+        int expired = 0;
+        int i = 0;
+        while (i < keys.length) {
+            if (keys[i] != EMPTY && built[i] < cutoff) {
+                long connection = keys[i];
+                int value = values[i];
+                delete(i);
+                expiry.expired(connection, cell(value), isUdp(value));
+                expired++;
+                // delete() may have shifted another entry into slot i
+            } else {
+                i++;
+            }
+        }
+        return expired;
+    }
+    
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        long[] oldBuilt = built;
+        allocate(keys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = slot(oldKeys[i]);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                built[j] = oldBuilt[i];
+            }
+        }
+    }
+    
+    int size() {
+        return size;
+    }
+}
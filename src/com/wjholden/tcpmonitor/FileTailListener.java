@@ -0,0 +1,124 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Follows a log file written by a syslog daemon, like tail -F.
+ * 
+ * Every line is one message. Reading starts at the end of the file, since
+ * whatever is already there is history we have no teardowns for. The file is
+ * polled four times a second. When it is truncated we start again from the
+ * top, and when it is rotated (replaced by a new file with the same name) we
+ * finish reading the old one and then open the new one from the beginning.
+ */
+public class FileTailListener extends SyslogListener {
+    
+    private static final long POLL_MILLISECONDS = 250;
+    private static final int BUFFER = 65536;
+    
+    private final Path path;
+    
+    public FileTailListener(String path, Source... sources) {
+        super("file:" + path, 0, sources);
+        this.path = Paths.get(path);
+    }
+    
+    @Override
+    public void run() {
+        boolean first = true;
+        while (true) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                Object key = fileKey();
+                if (first) {
+                    channel.position(channel.size());
+                }
+                first = false;
+                follow(channel, key);
+            } catch (NoSuchFileException ex) {
+                // rotated away and not created again yet
+                first = false;
+            } catch (IOException ex) {
+                System.err.println(ex);
+            }
+            try {
+                Thread.sleep(POLL_MILLISECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Read the file until it is replaced by another.
+     */
+    private void follow(FileChannel channel, Object key) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+        while (true) {
+            if (channel.read(buf) > 0) {
+                lines(buf);
+                continue;
+            }
+            if (channel.size() < channel.position()) {
+                channel.position(0);
+                buf.clear();
+                continue;
+            }
+            Object now = fileKey();
+            if (now != null && !Objects.equals(key, now)) {
+                return;
+            }
+            try {
+                Thread.sleep(POLL_MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Deliver every complete line in the buffer and keep the rest.
+     */
+    private void lines(ByteBuffer buf) {
+        byte[] bytes = buf.array();
+        int end = buf.position();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                if (i > start) {
+                    deliver(null, bytes, start, i - start);
+                }
+                start = i + 1;
+            }
+        }
+        if (start == 0 && end == bytes.length) {
+            // no line is this long, so it isn't syslog; don't wedge on it
+            deliver(null, bytes, 0, end);
+            start = end;
+        }
+        buf.limit(end);
+        buf.position(start);
+        buf.compact();
+    }
+    
+    /**
+     * @return something that identifies the file currently at the path, or
+     * null if there isn't one or the file system can't tell us.
+     */
+    private Object fileKey() {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.wjholden.tcpmonitor;
+
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.NoCache;
+import com.maxmind.db.NodeCache;
+import com.maxmind.db.Reader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the MaxMind DB reader, and a {@link SearchTree} over the same file.
+ * 
+ * By default the GeoLite2 City database is copied out of the jar into the
+ * temporary directory, once per jar: later runs reuse the copy. Point
+ * -Dconnectionmap.geoip.database at an external .mmdb file instead and
+ * startup doesn't have to copy it at all. Either way the
+ * file is opened memory-mapped, so the OS page cache holds it rather than
+ * the heap, and the search tree can be walked straight out of the mapping.
+ * An external file is also watched: when a new release is moved into place
+ * we open it on the watcher thread and swap it in with three volatile
+ * writes, the reader, then the search tree, then a bumped generation number.
+ * Lookups in between may pair the new reader with the old tree and remember
+ * a network of the wrong size, but nothing they learn survives: a
+ * {@link GeoLocator} that sees the new generation clears its cache and
+ * range index first. Lookups in flight keep using the old reader, which is
+ * closed a little later.
+ * 
+ * For the best results replace the file with a rename (mv), not a copy.
+ * 
+ * The GeoLite2 ASN database for {@link HeavyHitters} is handled the same
+ * way, through -Dconnectionmap.geoip.asn.database or
+ * /resources/GeoLite2-ASN.mmdb.
+ * 
+ * -Dconnectionmap.geoip.nodecache=true turns on the reader's own
+ * CHMCache of decoded records, which is worth having when the lookup cache is
+ * small compared to the number of distinct peers.
+ */
+final class GeoDatabase implements Closeable {
+    
+    private static final long QUIET_MILLISECONDS = 1000;
+    private static final long RETIRE_MILLISECONDS = 10000;
+    
+    private final File file;
+    private volatile Reader reader;
+    private volatile SearchTree tree;
+    private volatile int generation;
+    private final Thread watcher;
+    private WatchService watchService;
+    
+    GeoDatabase() throws IOException {
+        this("geoip.database", "/resources/GeoLite2-City.mmdb");
+    }
+    
+    /**
+     * @param setting names the external file, if there is one.
+     * @param resource the database in the jar to use otherwise.
+     */
+    GeoDatabase(String setting, String resource) throws IOException {
+        String path = Settings.getString(setting, null);
+        if (path == null) {
+            file = null;
+            File unpacked = unpack(resource);
+            reader = open(unpacked);
+            tree = searchTree(unpacked, reader);
+            watcher = null;
+        } else {
+            file = new File(path).getAbsoluteFile();
+            reader = open(file);
+            tree = searchTree(file, reader);
+            watcher = new Thread(this::watch, "GeoIP database watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+    
+    /**
+     * Copy a database out of the jar, or reuse the copy an earlier run made.
+     * Copies are named after the resource's size and modification time, so a
+     * new jar unpacks afresh and deletes the copies made from older ones.
+     */
+    private static File unpack(String resource) throws IOException {
+        URL url = GeoDatabase.class.getResource(resource);
+        if (url == null) {
+            throw new IOException(resource + " not found. Download it from MaxMind.");
+        }
+        URLConnection connection = url.openConnection();
+        long size = connection.getContentLengthLong();
+        String name = new File(resource).getName();
+        String base = name.substring(0, name.lastIndexOf('.')) + "-";
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        File unpacked = new File(directory, base + size + "-" + connection.getLastModified() + ".mmdb");
+        if (size >= 0 && unpacked.length() == size) {
+            return unpacked;
+        }
+        Path partial = File.createTempFile(base, ".part", directory).toPath();
+        try (InputStream stream = connection.getInputStream()) {
+            Files.copy(stream, partial, StandardCopyOption.REPLACE_EXISTING);
+            // another instance may have unpacked the same resource meanwhile
+            Files.move(partial, unpacked.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        File[] stale = directory.listFiles((dir, file) -> file.startsWith(base) && file.endsWith(".mmdb")
+                && !file.equals(unpacked.getName()));
+        if (stale != null) {
+            for (File old : stale) {
+                // still open in another instance on some platforms
+                old.delete();
+            }
+        }
+        return unpacked;
+    }
+    
+    private static Reader open(File file) throws IOException {
+        return new Reader(file, Reader.FileMode.MEMORY_MAPPED, nodeCache());
+    }
+    
+    /**
+     * @return the search tree, or null if we can't read it, in which case
+     * every lookup goes to the reader.
+     */
+    private static SearchTree searchTree(File file, Reader reader) {
+        try {
+            return SearchTree.map(file, reader);
+        } catch (IOException ex) {
+            System.err.println("GeoIP networks won't be indexed: " + ex);
+            return null;
+        }
+    }
+    
+    private static NodeCache nodeCache() {
+        if (Settings.getBoolean("geoip.nodecache", false)) {
+            return new CHMCache(Settings.getInt("geoip.nodecache.size", 4096));
+        }
+        return NoCache.getInstance();
+    }
+    
+    /**
+     * @return the current reader. Don't hold on to it across lookups.
+     */
+    Reader reader() {
+        return reader;
+    }
+    
+    /**
+     * @return the search tree of the current database. Like the reader,
+     * don't hold on to it.
+     */
+    SearchTree tree() {
+        return tree;
+    }
+    
+    /**
+     * @return a number that changes whenever a new database is swapped in, so
+     * that anything cached from the old one can be thrown away.
+     */
+    int generation() {
+        return generation;
+    }
+    
+    private void watch() {
+        Path directory = file.getParentFile().toPath();
+        Path name = file.toPath().getFileName();
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            synchronized (this) {
+                watchService = service;
+            }
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = concerns(key, name);
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+                // wait for the writer to finish before opening the file
+                while ((key = service.poll(QUIET_MILLISECONDS, TimeUnit.MILLISECONDS)) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // closed
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    private static boolean concerns(WatchKey key, Path name) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= name.equals(event.context());
+        }
+        return changed;
+    }
+    
+    private void reload() {
+        final Reader replacement;
+        try {
+            replacement = open(file);
+        } catch (IOException ex) {
+            System.err.println("Keeping the current GeoIP database: " + ex);
+            return;
+        }
+        final Reader retired = reader;
+        reader = replacement;
+        tree = searchTree(file, replacement);
+        generation++;
+        System.err.println("Loaded " + file + " (" + replacement.getMetadata().getBuildDate() + ")");
+        
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(RETIRE_MILLISECONDS);
+                retired.close();
+            } catch (InterruptedException | IOException ex) {
+                System.err.println(ex);
+            }
+        }, "GeoIP database closer");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (watchService != null) {
+                watchService.close();
+            }
+        }
+        reader.close();
+    }
+}
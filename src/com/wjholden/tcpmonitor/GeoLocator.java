@@ -0,0 +1,223 @@
+package com.wjholden.tcpmonitor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+
+/**
+ * Turns an outside address into a pixel on the map and the country it is in,
+ * or into the autonomous system it belongs to, depending on the {@link Field}.
+ * 
+ * We only ever need one or two fields, so instead of DatabaseReader.city()
+ * (which binds the whole record into a CityResponse object graph) we ask the
+ * underlying MaxMind DB reader for the raw record and read them out of it.
+ * Results, including "not in the database", go into a {@link LocationCache}
+ * so that the same few thousand peers we see all day never reach the reader
+ * again.
+ * 
+ * Behind the cache is a {@link RangeIndex} of whole networks. On a miss we
+ * walk the database's {@link SearchTree} for the prefix length along with the
+ * record, and from then on every other address in that network is answered
+ * from the index. An address in a network the database has no record for
+ * never reaches the reader at all.
+ * 
+ * One locator per parsing thread: the database is thread safe but the cache
+ * is not.
+ */
+final class GeoLocator {
+    
+    /** Returned for addresses that have no location. */
+    static final int UNKNOWN = -1;
+    
+    /**
+     * What a locator reads out of the record, as a long.
+     */
+    enum Field {
+        /**
+         * The pixel and the country, from a City database; see
+         * {@link #pixel} and {@link #country}. They come from the same record,
+         * so counting countries costs no second lookup or cache.
+         */
+        LOCATION {
+            @Override
+            long read(JsonNode record) {
+                JsonNode location = record.get("location");
+                int pixel = location == null || !location.has("latitude") || !location.has("longitude") ? UNKNOWN
+                        : classify(location.get("latitude").asDouble(), location.get("longitude").asDouble());
+                String code = isoCode(record.get("country"));
+                if (code == null) {
+                    // anycast and satellite networks often only have this
+                    code = isoCode(record.get("registered_country"));
+                }
+                return place(pixel, code == null ? UNKNOWN : code.charAt(0) << 8 | code.charAt(1));
+            }
+        },
+        /** The autonomous system number, from an ASN database. */
+        ASN {
+            @Override
+            long read(JsonNode record) {
+                JsonNode number = record.get("autonomous_system_number");
+                return number == null || !number.canConvertToInt() ? UNKNOWN : number.asInt();
+            }
+        };
+        
+        abstract long read(JsonNode record);
+        
+        private static String isoCode(JsonNode country) {
+            JsonNode code = country == null ? null : country.get("iso_code");
+            return code == null || !code.asText().matches("[A-Z]{2}") ? null : code.asText();
+        }
+    }
+    
+    /**
+     * Pack what {@link Field#LOCATION} found. Either half may be
+     * {@link #UNKNOWN}, and an address with no record at all is UNKNOWN,
+     * which unpacks as both.
+     */
+    static long place(int pixel, int country) {
+        return (long) country << 32 | (pixel & 0xffff_ffffL);
+    }
+    
+    /**
+     * @return the pixel packed as (x &lt;&lt; 16) | y, or {@link #UNKNOWN}.
+     */
+    static int pixel(long place) {
+        return (int) place;
+    }
+    
+    /**
+     * @return the ISO country code as two ASCII letters, (c0 &lt;&lt; 8) | c1,
+     * or {@link #UNKNOWN}.
+     */
+    static int country(long place) {
+        return (int) (place >> 32);
+    }
+    
+    private final Metrics.Histogram lookups;
+    private final Metrics.Counter failures;
+    private final Metrics.Counter unlocated;
+    
+    private final GeoDatabase database;
+    private final Field field;
+    private final LocationCache cache;
+    private final RangeIndex ranges;
+    private int generation;
+    
+    /**
+     * @param ranges how many networks to remember, or 0 for none.
+     */
+    GeoLocator(GeoDatabase database, int cacheSize, int ranges) {
+        this(database, cacheSize, ranges, Field.LOCATION);
+    }
+    
+    /**
+     * @param ranges how many networks to remember, or 0 for none.
+     * @param field what to read out of the record.
+     */
+    GeoLocator(GeoDatabase database, int cacheSize, int ranges, Field field) {
+        String name = field.name().toLowerCase();
+        this.lookups = Metrics.histogram("geoip_lookup_seconds",
+                "Time spent in the GeoIP database, which is only asked about addresses in networks we haven't seen.",
+                "field", name);
+        this.failures = Metrics.counter("geoip_lookup_failures_total",
+                "GeoIP lookups that failed with an exception.", "field", name);
+        this.unlocated = Metrics.counter("geoip_unlocated_total",
+                "GeoIP lookups that found nothing for the address.", "field", name);
+        this.database = database;
+        this.field = field;
+        this.cache = new LocationCache(cacheSize);
+        this.ranges = new RangeIndex(ranges);
+        this.generation = database.generation();
+    }
+    
+    /**
+     * @return the {@link Field} of the address, or {@link #UNKNOWN}.
+     */
+    long locate(AsaEvent event) {
+        if (generation != database.generation()) {
+            // a new database was loaded and locations may have moved
+            generation = database.generation();
+            cache.clear();
+            ranges.clear();
+        }
+        long key = LocationCache.key(event);
+        long value = cache.get(key);
+        if (value != LocationCache.ABSENT) {
+            return value;
+        }
+        value = ranges.get(key);
+        if (value != RangeIndex.ABSENT) {
+            cache.put(key, value);
+            return value;
+        }
+        long start = System.nanoTime();
+        int prefix = -1;
+        try {
+            SearchTree tree = database.tree();
+            if (tree != null) {
+                prefix = tree.prefix(event);
+            }
+            value = prefix >= 0 && (prefix & SearchTree.NO_DATA) != 0 ? UNKNOWN : lookup(event);
+        } catch (IOException ex) {
+            // Probably a corrupt database. Don't remember the failure.
+            failures.increment();
+            System.err.println(ex);
+            return UNKNOWN;
+        } finally {
+            lookups.since(start);
+        }
+        if (value == UNKNOWN) {
+            unlocated.increment();
+        }
+        cache.put(key, value);
+        if (prefix >= 0) {
+            remember(event, key, prefix & ~SearchTree.NO_DATA, value);
+        }
+        return value;
+    }
+    
+    private void remember(AsaEvent event, long key, int prefix, long value) {
+        int hostBits;
+        if (!event.v6) {
+            hostBits = 32 - prefix;
+        } else if (prefix >= 16 && prefix <= 64) {
+            // Shorter networks could reach into the IPv4 keys, longer ones are
+            // finer than our keys.
+            hostBits = 64 - prefix;
+        } else {
+            return;
+        }
+        long mask = (1L << hostBits) - 1;
+        long first = key & ~mask;
+        ranges.put(first, first | mask, value);
+    }
+    
+    private long lookup(AsaEvent event) throws IOException {
+        JsonNode record = database.reader().get(event.toInetAddress());
+        return record == null ? UNKNOWN : field.read(record);
+    }
+    
+    /**
+     * @return the pixel at the finest level of the {@link ConnectionGrid}.
+     */
+    static int classify(double latitude, double longitude) {
+        int width = ConnectionGrid.width(ConnectionGrid.ZOOM);
+        int height = ConnectionGrid.height(ConnectionGrid.ZOOM);
+        
+        // Scale before rounding, or everything snaps to whole degrees.
+        int y = (int) Math.round((latitude + 90) * height / 180);
+        
+        int x = (int) Math.round((longitude + 180) * width / 360);
+        
+        // Longitude 180 is longitude -180 and wraps around to the other edge,
+        // but latitude 90 belongs in the last row, not at the other pole.
+        return ((x % width) << 16) | Math.min(y, height - 1);
+    }
+    
+    LocationCache cache() {
+        return cache;
+    }
+    
+    RangeIndex ranges() {
+        return ranges;
+    }
+}
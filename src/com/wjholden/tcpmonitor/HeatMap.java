@@ -0,0 +1,164 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Per-cell intensity for the heat map mode.
+ * 
+ * A cell's heat jumps up to its connection count as soon as connections are
+ * built and then decays exponentially (with a configurable half-life) back
+ * down towards the count after they close, so recent activity leaves an
+ * afterglow. Decay is lazy: each cell stores its heat and the time it was
+ * last touched, and the current value is worked out only when somebody asks.
+ * 
+ * Colour comes from a 256 entry palette indexed by log(1 + heat) over
+ * log(1 + max). The maximum is a running one that decays at the same rate,
+ * so we never need to scan the whole grid to normalize.
+ * 
+ * Cells that are still cooling are kept in an active list so that the
+ * renderer can revisit a bounded number of them per frame with
+ * {@link #sweep}.
+ * 
+ * Not thread safe; this belongs to the renderer.
+ */
+final class HeatMap {
+    
+    /** Heat below this is drawn as nothing at all. */
+    static final float THRESHOLD = 0.05f;
+    
+    private final float[] heat = new float[ConnectionGrid.CELLS];
+    private final int[] stamp = new int[ConnectionGrid.CELLS];
+    private final int[] active = new int[ConnectionGrid.CELLS];
+    private final boolean[] isActive = new boolean[ConnectionGrid.CELLS];
+    private int activeCount;
+    private int cursor;
+    
+    private final int[] palette = new int[256];
+    private final float[] decay;
+    private final long epoch = System.nanoTime();
+    private float max = 1;
+    private int maxStamp;
+    
+    /**
+     * @param halfLifeSeconds how long it takes for heat to halve.
+     */
+    HeatMap(double halfLifeSeconds) {
+        // Time is kept in tenths of a second so that an int lasts for years.
+        // Decay factors are tabulated out to 16 half-lives, after which
+        // anything is below THRESHOLD anyway.
+        double halfLife = Math.max(1, halfLifeSeconds * 10);
+        decay = new float[(int) (16 * halfLife) + 1];
+        for (int i = 0; i < decay.length; i++) {
+            decay[i] = (float) Math.pow(0.5, i / halfLife);
+        }
+        for (int i = 0; i < palette.length; i++) {
+            // black body: dark red, red, yellow, white
+            double t = i / 255.0;
+            int r = (int) (255 * Math.min(1, 0.25 + 3 * t));
+            int g = (int) (255 * Math.max(0, Math.min(1, 3 * t - 1)));
+            int b = (int) (255 * Math.max(0, Math.min(1, 3 * t - 2)));
+            palette[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+    
+    /**
+     * @return the current time in the units used for stamps.
+     */
+    int now() {
+        return (int) ((System.nanoTime() - epoch) / 100_000_000L);
+    }
+    
+    private float decay(int elapsed) {
+        if (elapsed <= 0) {
+            return 1;
+        }
+        return elapsed < decay.length ? decay[elapsed] : 0;
+    }
+    
+    /**
+     * @return the decayed heat of a cell, without updating it.
+     */
+    float value(int cell, int now) {
+        return heat[cell] * decay(now - stamp[cell]);
+    }
+    
+    /**
+     * Bring a cell up to date with its connection count.
+     * 
+     * @return the cell's heat.
+     */
+    float touch(int cell, int count, int now) {
+        float value = Math.max(value(cell, now), count);
+        heat[cell] = value;
+        stamp[cell] = now;
+        if (value >= THRESHOLD && !isActive[cell]) {
+            isActive[cell] = true;
+            active[activeCount++] = cell;
+        }
+        float m = max(now);
+        if (value > m) {
+            m = value;
+        }
+        max = m;
+        maxStamp = now;
+        return value;
+    }
+    
+    private float max(int now) {
+        return Math.max(1, max * decay(now - maxStamp));
+    }
+    
+    /**
+     * @return the colour for a heat value, or 0 if it is too cold to draw.
+     */
+    int color(float value, int now) {
+        if (value < THRESHOLD) {
+            return 0;
+        }
+        int i = (int) (255 * Math.log1p(value) / Math.log1p(max(now)));
+        return palette[Math.max(0, Math.min(255, i))];
+    }
+    
+    /**
+     * Visit up to budget cooling cells, round robin. The visitor is expected
+     * to {@link #touch} the cell; cells that have cooled off completely are
+     * then dropped from the active list.
+     */
+    void sweep(int budget, IntConsumer visitor) {
+        for (int n = 0; n < budget && activeCount > 0; n++) {
+            if (cursor >= activeCount) {
+                cursor = 0;
+            }
+            int cell = active[cursor];
+            visitor.accept(cell);
+            if (heat[cell] < THRESHOLD) {
+                isActive[cell] = false;
+                active[cursor] = active[--activeCount];
+            } else {
+                cursor++;
+            }
+        }
+    }
+    
+    /**
+     * Forget all heat, as when the cells change meaning.
+     */
+    void clear() {
+        Arrays.fill(heat, 0);
+        Arrays.fill(isActive, false);
+        activeCount = 0;
+        cursor = 0;
+        max = 1;
+    }
+    
+    int activeCount() {
+        return activeCount;
+    }
+    
+    void forEachActive(IntConsumer visitor) {
+        for (int i = 0; i < activeCount; i++) {
+            visitor.accept(active[i]);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The remote hosts, countries and autonomous systems opening the most
+ * connections over the last minute, quarter hour and hour.
+ * 
+ * Every window is a ring of tumbling buckets, each a {@link SpaceSaving}
+ * summary: six 10 second buckets for the minute, fifteen 1 minute buckets
+ * for the quarter hour and twelve 5 minute buckets for the hour. A window
+ * slides by dropping its oldest bucket, and a query merges the buckets still
+ * inside it, so answers are at most one bucket stale at the far end. Memory
+ * is fixed by -Dconnectionmap.topk.capacity (keys per bucket, default 64)
+ * whatever the connection rate, and a query touches at most a few thousand
+ * counters.
+ * 
+ * Each pipeline worker counts the connections it builds into its own
+ * instance; {@link #top} merges them. Hosts never need merging across
+ * workers because a host always goes to the same worker.
+ * 
+ * Counts are Space-Saving estimates: they may be too high by up to the error
+ * reported with them, and a key only seen in some buckets may be undercounted
+ * in the others.
+ */
+final class HeavyHitters {
+    
+    /** What is counted. */
+    enum Dimension {
+        /** Remote IPv4 addresses and IPv6 /64s, keyed by {@link LocationCache#key}. */
+        HOST,
+        /** Countries, as two ASCII letters as {@link GeoLocator#country} unpacks them. */
+        COUNTRY,
+        /** Autonomous system numbers. */
+        ASN;
+        
+        String format(long key) {
+            if (key == GeoLocator.UNKNOWN) {
+                return "??";
+            }
+            switch (this) {
+                case HOST:
+                    if ((key >>> 48) == 0xffff) {
+                        return (key >>> 24 & 0xff) + "." + (key >>> 16 & 0xff) + "." + (key >>> 8 & 0xff) + "." + (key & 0xff);
+                    }
+                    return String.format("%x:%x:%x:%x::/64", key >>> 48, key >>> 32 & 0xffff, key >>> 16 & 0xffff, key & 0xffff);
+                case COUNTRY:
+                    return new String(new char[] { (char) (key >>> 8), (char) (key & 0xff) });
+                default:
+                    return "AS" + key;
+            }
+        }
+    }
+    
+    /** How far back to look. */
+    enum Window {
+        MINUTE("1m", 10, 6),
+        QUARTER("15m", 60, 15),
+        HOUR("1h", 300, 12);
+        
+        final String label;
+        final long bucket;
+        final int buckets;
+        
+        Window(String label, long bucketSeconds, int buckets) {
+            this.label = label;
+            this.bucket = TimeUnit.SECONDS.toMillis(bucketSeconds);
+            this.buckets = buckets;
+        }
+        
+        /**
+         * @return the window called label ("1m", "15m" or "1h"), or null.
+         */
+        static Window of(String label) {
+            for (Window window : values()) {
+                if (window.label.equals(label)) {
+                    return window;
+                }
+            }
+            return null;
+        }
+    }
+    
+    /** One answer from {@link #top}. */
+    static final class Hitter {
+        
+        final Dimension dimension;
+        final long key;
+        final long count;
+        final long error;
+        
+        Hitter(Dimension dimension, long key, long count, long error) {
+            this.dimension = dimension;
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+        
+        String name() {
+            return dimension.format(key);
+        }
+        
+        @Override
+        public String toString() {
+            return name() + " " + count;
+        }
+    }
+    
+    private static final Dimension[] DIMENSIONS = Dimension.values();
+    private static final Window[] WINDOWS = Window.values();
+    
+    // [dimension][window][bucket]
+    private final SpaceSaving[][][] summaries;
+    // the bucket number every bucket was last cleared for, [window][bucket]
+    private final long[][] epochs;
+    private final int capacity;
+    
+    HeavyHitters(int capacity) {
+        this.capacity = capacity;
+        summaries = new SpaceSaving[DIMENSIONS.length][WINDOWS.length][];
+        epochs = new long[WINDOWS.length][];
+        for (Window window : WINDOWS) {
+            epochs[window.ordinal()] = new long[window.buckets];
+            for (Dimension dimension : DIMENSIONS) {
+                SpaceSaving[] buckets = new SpaceSaving[window.buckets];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new SpaceSaving(capacity);
+                }
+                summaries[dimension.ordinal()][window.ordinal()] = buckets;
+            }
+        }
+    }
+    
+    /**
+     * Count one connection.
+     * 
+     * @param country or {@link GeoLocator#UNKNOWN}.
+     * @param asn or {@link GeoLocator#UNKNOWN}.
+     */
+    synchronized void count(long host, int country, int asn, long now) {
+        for (int w = 0; w < WINDOWS.length; w++) {
+            long epoch = now / WINDOWS[w].bucket;
+            int b = (int) (epoch % WINDOWS[w].buckets);
+            if (epochs[w][b] != epoch) {
+                epochs[w][b] = epoch;
+                for (int d = 0; d < DIMENSIONS.length; d++) {
+                    summaries[d][w][b].clear();
+                }
+            }
+            summaries[Dimension.HOST.ordinal()][w][b].offer(host);
+            summaries[Dimension.COUNTRY.ordinal()][w][b].offer(country);
+            // unlocated hosts are worth seeing, but "no ASN" would just crowd out real ones
+            if (asn != GeoLocator.UNKNOWN) {
+                summaries[Dimension.ASN.ordinal()][w][b].offer(asn);
+            }
+        }
+    }
+    
+    private synchronized void merge(Dimension dimension, Window window, long now, Tally tally) {
+        long epoch = now / window.bucket;
+        long[] windowEpochs = epochs[window.ordinal()];
+        SpaceSaving[] buckets = summaries[dimension.ordinal()][window.ordinal()];
+        for (int b = 0; b < buckets.length; b++) {
+            if (windowEpochs[b] > epoch - window.buckets && windowEpochs[b] <= epoch) {
+                buckets[b].forEach(tally);
+            }
+        }
+    }
+    
+    /**
+     * @return the n biggest keys over the window, biggest first. Empty if n
+     * isn't positive.
+     */
+    static List<Hitter> top(HeavyHitters[] parts, Dimension dimension, Window window, int n, long now) {
+        if (n <= 0) {
+            return new ArrayList<>();
+        }
+        int entries = 0;
+        for (HeavyHitters part : parts) {
+            entries += window.buckets * part.capacity;
+        }
+        Tally tally = new Tally(entries);
+        for (HeavyHitters part : parts) {
+            part.merge(dimension, window, now, tally);
+        }
+        return tally.top(dimension, n);
+    }
+    
+    /**
+     * Sums counts by key in a throwaway open addressing table. Key, count
+     * and error sit side by side so that a probe touches one cache line, and
+     * a count of 0 marks an empty slot since every counted key has at least
+     * 1.
+     */
+    private static final class Tally implements SpaceSaving.Visitor {
+        
+        private static final int KEY = 0, COUNT = 1, ERROR = 2, SLOT = 3;
+        
+        private final long[] slots;
+        private final int mask;
+        
+        /**
+         * @param entries the most keys that will be visited.
+         */
+        Tally(int entries) {
+            int capacity = Integer.highestOneBit(Math.max(16, entries * 2) - 1) << 1;
+            slots = new long[capacity * SLOT];
+            mask = capacity - 1;
+        }
+        
+        @Override
+        public void visit(long key, long count, long error) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            int i = ((int) (h >>> 32) & mask) * SLOT;
+            while (slots[i + COUNT] != 0 && slots[i + KEY] != key) {
+                i = i + SLOT == slots.length ? 0 : i + SLOT;
+            }
+            slots[i + KEY] = key;
+            slots[i + COUNT] += count;
+            slots[i + ERROR] += error;
+        }
+        
+        List<Hitter> top(Dimension dimension, int n) {
+            // the n biggest slots so far, biggest first, kept by insertion
+            int[] best = new int[n];
+            int size = 0;
+            for (int i = 0; i < slots.length; i += SLOT) {
+                long count = slots[i + COUNT];
+                if (count == 0 || (size == n && count <= slots[best[n - 1] + COUNT])) {
+                    continue;
+                }
+                int j = size < n ? size++ : n - 1;
+                while (j > 0 && slots[best[j - 1] + COUNT] < count) {
+                    best[j] = best[j - 1];
+                    j--;
+                }
+                best[j] = i;
+            }
+            List<Hitter> top = new ArrayList<>(size);
+            for (int k = 0; k < size; k++) {
+                int i = best[k];
+                top.add(new Hitter(dimension, slots[i + KEY], slots[i + COUNT], slots[i + ERROR]));
+            }
+            return top;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Which pixels of the map are land, as one bit per pixel.
+ * 
+ * The earth*.txt resources list every land pixel as an "x y" line, which is
+ * slow to parse and used to end up as hundreds of thousands of boxed
+ * Integers. The build runs {@link #main} after compiling to pack each of
+ * them into an earth*.bin next to it:
+ * 
+ * <pre>
+ * int   magic "LMSK"
+ * int   width
+ * int   height
+ * long  bits[(width * height + 63) / 64], row major, bit (y * width + x)
+ * </pre>
+ * 
+ * That is 32 KB per map, read with a single readFully. If the .bin is
+ * missing (running straight from the IDE, say) we fall back to the text.
+ */
+final class LandMask {
+    
+    private static final int MAGIC = 0x4c4d534b;
+    
+    final int width;
+    final int height;
+    private final long[] bits;
+    
+    LandMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.bits = new long[(width * height + 63) / 64];
+    }
+    
+    boolean isLand(int x, int y) {
+        int i = y * width + x;
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+    
+    void setLand(int x, int y) {
+        int i = y * width + x;
+        bits[i >>> 6] |= 1L << i;
+    }
+    
+    /**
+     * @param name the resource name without extension, e.g. "/resources/earth1".
+     */
+    static LandMask load(String name) throws IOException {
+        try (InputStream in = LandMask.class.getResourceAsStream(name + ".bin")) {
+            if (in != null) {
+                return readBinary(in);
+            }
+        }
+        try (InputStream in = LandMask.class.getResourceAsStream(name + ".txt")) {
+            if (in == null) {
+                throw new IOException(name + " not found");
+            }
+            return readText(in, ConnectionMap.WIDTH, ConnectionMap.HEIGHT);
+        }
+    }
+    
+    static LandMask readBinary(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a land mask");
+        }
+        LandMask mask = new LandMask(data.readInt(), data.readInt());
+        byte[] raw = new byte[mask.bits.length * 8];
+        data.readFully(raw);
+        ByteBuffer.wrap(raw).asLongBuffer().get(mask.bits);
+        return mask;
+    }
+    
+    /**
+     * Read space-separated (x,y) coordinates, one land pixel per line.
+     */
+    static LandMask readText(InputStream in, int width, int height) throws IOException {
+        LandMask mask = new LandMask(width, height);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                continue;
+            }
+            int x = Integer.parseInt(line.substring(0, space));
+            int y = Integer.parseInt(line.substring(space + 1).trim());
+            if (x >= 0 && x < width && y >= 0 && y < height) {
+                mask.setLand(x, y);
+            }
+        }
+        return mask;
+    }
+    
+    void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(width);
+        data.writeInt(height);
+        for (long word : bits) {
+            data.writeLong(word);
+        }
+        data.flush();
+    }
+    
+    /**
+     * Build step: convert every earth*.txt in the source directory to an
+     * earth*.bin in the destination directory.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: LandMask source-directory destination-directory");
+            System.exit(1);
+        }
+        File source = new File(args[0]);
+        File destination = new File(args[1]);
+        destination.mkdirs();
+        File[] maps = source.listFiles((dir, name) -> name.startsWith("earth") && name.endsWith(".txt"));
+        if (maps == null) {
+            throw new IOException(source + " is not a directory");
+        }
+        for (File text : maps) {
+            File binary = new File(destination, text.getName().replaceFirst("\\.txt$", ".bin"));
+            if (binary.lastModified() > text.lastModified()) {
+                continue;
+            }
+            LandMask mask;
+            try (InputStream in = new FileInputStream(text)) {
+                mask = readText(in, ConnectionMap.WIDTH, ConnectionMap.HEIGHT);
+            }
+            try (OutputStream out = new FileOutputStream(binary)) {
+                mask.write(out);
+            }
+            System.out.println("Packed " + text.getName() + " into " + binary);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded map from a primitive IP address key to what a {@link GeoLocator}
+ * found for it.
+ * 
+ * The cache is set associative, like a CPU cache: a key hashes to one set of
+ * {@link #WAYS} slots and only that set is searched. Eviction within a set is
+ * CLOCK (second chance). A slot's reference bit is set on every hit and the
+ * set's hand skips over, and clears, referenced slots until it finds one that
+ * hasn't been used since the hand last went by.
+ * 
+ * Lookups and inserts allocate nothing and the cache is not thread safe; give
+ * each parsing thread its own. The statistics may be read from anywhere.
+ */
+final class LocationCache {
+    
+    static final int WAYS = 8;
+    
+    /** Key value marking an empty slot. {@link #key} never produces it. */
+    private static final long EMPTY = 0;
+    
+    /** Value returned by {@link #get} when the key is not cached. */
+    static final long ABSENT = Long.MIN_VALUE;
+    
+    private final long[] keys;
+    private final long[] values;
+    private final boolean[] referenced;
+    private final byte[] hands;
+    private final int setMask;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    /**
+     * @param capacity the number of entries, rounded up to a power of two.
+     */
+    LocationCache(int capacity) {
+        int sets = Math.max(1, Integer.highestOneBit(Math.max(1, capacity / WAYS - 1)) << 1);
+        setMask = sets - 1;
+        keys = new long[sets * WAYS];
+        values = new long[sets * WAYS];
+        referenced = new boolean[sets * WAYS];
+        hands = new byte[sets];
+    }
+    
+    /**
+     * Cache keys. IPv4 addresses are tagged into the reserved ffff::/16 range
+     * so that they can't collide with IPv6 keys, which are the upper 64 bits
+     * of the address. Nobody geolocates finer than a /64 anyway.
+     */
+    static long key(AsaEvent event) {
+        if (!event.v6) {
+            return 0xffff_0000_0000_0000L | (event.ipv4 & 0xffff_ffffL);
+        }
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (event.ipv6[i] & 0xff);
+        }
+        return key;
+    }
+    
+    /**
+     * @return the cached value, or {@link #ABSENT}.
+     */
+    long get(long key) {
+        int base = set(key) * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            if (keys[i] == key && key != EMPTY) {
+                referenced[i] = true;
+                hits.increment();
+                return values[i];
+            }
+        }
+        misses.increment();
+        return ABSENT;
+    }
+    
+    void put(long key, long value) {
+        if (key == EMPTY) {
+            return;
+        }
+        int set = set(key);
+        int base = set * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            if (keys[i] == EMPTY || keys[i] == key) {
+                keys[i] = key;
+                values[i] = value;
+                referenced[i] = false;
+                return;
+            }
+        }
+        int hand = hands[set];
+        while (referenced[base + hand]) {
+            referenced[base + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+        keys[base + hand] = key;
+        values[base + hand] = value;
+        hands[set] = (byte) ((hand + 1) % WAYS);
+        evictions.increment();
+    }
+    
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(referenced, false);
+    }
+    
+    private int set(long key) {
+        // Murmur3 finalizer. Neighbouring addresses must not share a set.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & setMask;
+    }
+    
+    int capacity() {
+        return keys.length;
+    }
+    
+    long hits() {
+        return hits.sum();
+    }
+    
+    long misses() {
+        return misses.sum();
+    }
+    
+    long evictions() {
+        return evictions.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d evictions", hits(), misses(), evictions());
+    }
+}
@@ -0,0 +1,342 @@
+package com.wjholden.tcpmonitor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Draws the map into one long lived image instead of allocating a new one
+ * (and replaying every land pixel through setRGB) on every paint.
+ * 
+ * The land is drawn once into a layer of ARGB ints and only redrawn when the
+ * view changes: panning, the map offsets, the shade of green, the choice of
+ * map or the drawing mode. Between view changes we only touch the cells that
+ * the grid reports as dirty, writing straight into the image's int raster. A
+ * cell that empties gets its land (or water) pixel back from the layer.
+ * 
+ * In heat map mode each frame also revisits a bounded slice of the cells
+ * that are still cooling down (see {@link HeatMap}), so the cost of a frame
+ * is proportional to what changed rather than to the size of the map. An
+ * optional blur (-Dconnectionmap.heat.blur=radius) spreads each cell over
+ * its neighbours. It is only ever computed around the cells being redrawn,
+ * and separably: a cell repaints the (2 * radius + 1)^2 pixels its heat
+ * reaches, so we sum the rows under them once, then the columns of those
+ * sums.
+ * 
+ * Zoomed in, the image shows a WIDTH * HEIGHT window onto a finer level of
+ * the grid's pyramid (see {@link ConnectionGrid}), so drawing it reads
+ * exactly the visible cells of that level whatever the number of
+ * connections. The land is scaled up from the map, and a dirty level 0 cell
+ * redraws only its visible descendants. Heat is then kept per pixel of the
+ * window rather than per grid cell, and starts over when the view changes.
+ * 
+ * Each render also records which level 0 cells it found dirty, and bumps a
+ * version number if anything at all was redrawn, so that callers can ship
+ * deltas and skip re-encoding unchanged frames.
+ * 
+ * Not thread safe. The image returned is reused, so draw it before calling
+ * {@link #render} again.
+ */
+final class MapRenderer {
+    
+    private static final int WIDTH = ConnectionMap.WIDTH;
+    private static final int HEIGHT = ConnectionMap.HEIGHT;
+    // Outside of heat map mode this is just a simple white/black map of pixels.
+    private static final int CONNECTION = 0xffffffff;
+    private static final int SWEEP_BUDGET = 4096;
+    private static final Metrics.Histogram RENDERS = Metrics.histogram("render_seconds", "Time taken to render a frame.");
+    
+    private final ConnectionGrid grid;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int[] land = new int[WIDTH * HEIGHT];
+    private final HeatMap heatMap;
+    private final int blur;
+    private final float[] kernel;
+    // the heat along one row of a neighbourhood, and the row sums under it
+    private final float[] line;
+    private final float[] rows;
+    private int now;
+    private int[] changed = new int[1024];
+    private int changedCount;
+    private boolean redrawn;
+    private long version;
+    private final IntConsumer drawSlot = this::drawSlot;
+    private final IntConsumer touchSlot = this::touchSlot;
+    private final IntConsumer dirtyPlain = cell -> {
+        record(cell);
+        slots(cell, drawSlot);
+    };
+    private final IntConsumer dirtyHeat = cell -> {
+        record(cell);
+        slots(cell, touchSlot);
+    };
+    
+    // the view that the land layer and image were drawn for
+    private LandMask earth;
+    private int green, zoom, xoffset, yoffset, mapxoffset, mapyoffset;
+    private boolean heat;
+    
+    MapRenderer(ConnectionGrid grid) {
+        this.grid = grid;
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        heatMap = new HeatMap(Settings.getInt("heat.halflife", 60));
+        blur = Math.max(0, Math.min(8, Settings.getInt("heat.blur", 0)));
+        // binomial weights, normalized
+        kernel = new float[2 * blur + 1];
+        kernel[0] = 1;
+        for (int i = 1; i < kernel.length; i++) {
+            for (int j = i; j > 0; j--) {
+                kernel[j] += kernel[j - 1];
+            }
+        }
+        float sum = 0;
+        for (float k : kernel) {
+            sum += k;
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        line = new float[2 * kernel.length - 1];
+        rows = new float[line.length * kernel.length];
+    }
+    
+    /**
+     * @param zoom the level of the grid to show, from 0 (the whole world) to
+     * {@link ConnectionGrid#ZOOM}.
+     * @param xoffset where the view is panned to, in cells of that level.
+     */
+    BufferedImage render(LandMask earth, int green, int zoom, int xoffset, int yoffset, int mapxoffset, int mapyoffset,
+            boolean heat) {
+        long start = System.nanoTime();
+        now = heatMap.now();
+        changedCount = 0;
+        redrawn = false;
+        int active = heatMap.activeCount();
+        if (earth != this.earth || green != this.green || zoom != this.zoom || xoffset != this.xoffset
+                || yoffset != this.yoffset || mapxoffset != this.mapxoffset || mapyoffset != this.mapyoffset
+                || heat != this.heat) {
+            if (zoom > 0 || this.zoom > 0) {
+                // the heat was kept for pixels that now show something else
+                heatMap.clear();
+            }
+            this.earth = earth;
+            this.green = green;
+            this.zoom = zoom;
+            this.xoffset = xoffset;
+            this.yoffset = yoffset;
+            this.mapxoffset = mapxoffset;
+            this.mapyoffset = mapyoffset;
+            this.heat = heat;
+            redraw();
+            redrawn = true;
+        } else if (heat) {
+            grid.drainDirty(dirtyHeat);
+            heatMap.sweep(SWEEP_BUDGET, touchSlot);
+        } else {
+            grid.drainDirty(dirtyPlain);
+        }
+        if (redrawn || changedCount > 0 || (heat && active > 0)) {
+            version++;
+        }
+        RENDERS.since(start);
+        return image;
+    }
+    
+    private void record(int cell) {
+        if (changedCount == changed.length) {
+            changed = Arrays.copyOf(changed, changed.length * 2);
+        }
+        changed[changedCount++] = cell;
+    }
+    
+    /**
+     * @return a number that changes whenever a render changed the image.
+     */
+    long version() {
+        return version;
+    }
+    
+    /**
+     * @return true if the last render redrew everything, in which case
+     * {@link #changedCells} is empty and every cell should be considered
+     * changed.
+     */
+    boolean redrawn() {
+        return redrawn;
+    }
+    
+    /**
+     * Report the level 0 cells whose counts changed in the last render.
+     */
+    void changedCells(IntConsumer consumer) {
+        for (int i = 0; i < changedCount; i++) {
+            consumer.accept(changed[i]);
+        }
+    }
+    
+    private void redraw() {
+        final int width = ConnectionGrid.width(zoom);
+        final int height = ConnectionGrid.height(zoom);
+        for (int row = 0; row < HEIGHT; row++) {
+            // the level 0 row under this row of the image, and its row of the map
+            final int y = Math.floorMod(yoffset - row, height) >> zoom;
+            final int earthy = Math.floorMod(mapyoffset - y, HEIGHT);
+            for (int column = 0; column < WIDTH; column++) {
+                final int x = Math.floorMod(column - xoffset, width) >> zoom;
+                final int earthx = Math.floorMod(x - mapxoffset, WIDTH);
+                // I was surprised to learn that the alpha channel actually comes first.
+                // The bytes of the integer are AA|RR|GG|BB.
+                land[row * WIDTH + column] = earthx < earth.width && earthy < earth.height
+                        && earth.isLand(earthx, earthy) ? green : 0;
+            }
+        }
+        // Throw away the dirty cells first: anything that changes after this
+        // point is redrawn next time, anything before is covered below.
+        grid.drainDirty(cell -> { });
+        System.arraycopy(land, 0, pixels, 0, pixels.length);
+        if (zoom > 0) {
+            // every visible cell of the level, once
+            for (int slot = 0; slot < pixels.length; slot++) {
+                int count = count(slot);
+                if (count > 0 && heat) {
+                    heatMap.touch(slot, count, now);
+                } else if (count > 0) {
+                    pixels[slot] = CONNECTION;
+                }
+            }
+            if (heat) {
+                heatMap.forEachActive(touchSlot);
+            }
+        } else if (heat) {
+            grid.forEach((x, y, tcp, udp) -> heatMap.touch(y * WIDTH + x, tcp + udp, now));
+            heatMap.forEachActive(touchSlot);
+        } else {
+            grid.forEach((x, y, tcp, udp) -> pixels[screen(x, y)] = CONNECTION);
+        }
+    }
+    
+    /**
+     * Report the slots showing a level 0 cell. A slot is what the heat map
+     * keeps heat for: the level 0 cell itself when showing the whole world,
+     * and the pixel of the image (row * WIDTH + column) when zoomed in.
+     * Either way there are WIDTH * HEIGHT of them.
+     */
+    private void slots(int cell, IntConsumer consumer) {
+        if (zoom == 0) {
+            consumer.accept(cell);
+            return;
+        }
+        final int width = ConnectionGrid.width(zoom);
+        final int height = ConnectionGrid.height(zoom);
+        final int x0 = (cell % WIDTH) << zoom;
+        final int y0 = (cell / WIDTH) << zoom;
+        for (int y = y0; y < y0 + (1 << zoom); y++) {
+            final int row = Math.floorMod(yoffset - y, height);
+            if (row >= HEIGHT) {
+                continue;
+            }
+            for (int x = x0; x < x0 + (1 << zoom); x++) {
+                final int column = Math.floorMod(x + xoffset, width);
+                if (column < WIDTH) {
+                    consumer.accept(row * WIDTH + column);
+                }
+            }
+        }
+    }
+    
+    private int count(int slot) {
+        if (zoom == 0) {
+            return grid.count(slot);
+        }
+        final int width = ConnectionGrid.width(zoom);
+        final int x = Math.floorMod(slot % WIDTH - xoffset, width);
+        final int y = Math.floorMod(yoffset - slot / WIDTH, ConnectionGrid.height(zoom));
+        return grid.count(zoom, y * width + x);
+    }
+    
+    /**
+     * @return the index in the image of a slot.
+     */
+    private int pixel(int slot) {
+        return zoom == 0 ? screen(slot % WIDTH, slot / WIDTH) : slot;
+    }
+    
+    /**
+     * @return the slot column of x, which wraps around when the slots are
+     * the whole world, or -1 if it is off the edge of the window.
+     */
+    private int column(int x) {
+        if (zoom == 0) {
+            return Math.floorMod(x, WIDTH);
+        }
+        return x >= 0 && x < WIDTH ? x : -1;
+    }
+    
+    private void drawSlot(int slot) {
+        final int i = pixel(slot);
+        pixels[i] = count(slot) > 0 ? CONNECTION : land[i];
+    }
+    
+    private void touchSlot(int slot) {
+        heatMap.touch(slot, count(slot), now);
+        final int x = slot % WIDTH;
+        final int y = slot / WIDTH;
+        if (blur == 0) {
+            paint(x, y, heatMap.value(slot, now));
+            return;
+        }
+        // the horizontal pass, for the columns we repaint and every row the
+        // vertical pass reaches
+        final int side = kernel.length;
+        for (int r = 0; r < line.length; r++) {
+            final int row = y + r - 2 * blur;
+            if (row < 0 || row >= HEIGHT) {
+                Arrays.fill(rows, r * side, (r + 1) * side, 0);
+                continue;
+            }
+            for (int i = 0; i < line.length; i++) {
+                final int column = column(x + i - 2 * blur);
+                line[i] = column < 0 ? 0 : heatMap.value(row * WIDTH + column, now);
+            }
+            for (int c = 0; c < side; c++) {
+                float sum = 0;
+                for (int j = 0; j < side; j++) {
+                    sum += kernel[j] * line[c + j];
+                }
+                rows[r * side + c] = sum;
+            }
+        }
+        // the vertical pass
+        for (int ty = Math.max(0, y - blur); ty <= Math.min(HEIGHT - 1, y + blur); ty++) {
+            final int r0 = ty - y + blur;
+            for (int c = 0; c < side; c++) {
+                final int column = column(x + c - blur);
+                if (column < 0) {
+                    continue;
+                }
+                float value = 0;
+                for (int k = 0; k < side; k++) {
+                    value += kernel[k] * rows[(r0 + k) * side + c];
+                }
+                paint(column, ty, value);
+            }
+        }
+    }
+    
+    private void paint(int x, int y, float value) {
+        final int i = pixel(y * WIDTH + x);
+        final int color = heatMap.color(value, now);
+        pixels[i] = color == 0 ? land[i] : color;
+    }
+    
+    /**
+     * @return the index in the image of level 0 cell (x, y). The grid counts
+     * latitude up from the south pole and the image counts rows down.
+     */
+    private int screen(int x, int y) {
+        return ((HEIGHT - y + yoffset) % HEIGHT) * WIDTH + (x + xoffset) % WIDTH;
+    }
+}
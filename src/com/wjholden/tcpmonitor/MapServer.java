@@ -0,0 +1,409 @@
+package com.wjholden.tcpmonitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Serves the map over HTTP for headless NOC boxes.
+ * 
+ * <pre>
+ * /           a page that shows the map and refreshes it on every change
+ * /frame.png  the rendered map
+ * /cells.json every occupied cell as [x, y, tcp, udp]
+ * /cells.bin  the same as big endian ints: width, height, version (long),
+ *             count, then count * (cell, tcp, udp)
+ * /events     server-sent events: one "snapshot" with all cells, then a
+ *             "delta" with just the changed cells every time something changes
+ * /metrics    counters and histograms in the Prometheus text format
+ * /history.json?at=t
+ *             the snapshot at or before t (epoch milliseconds) like
+ *             /cells.json, plus the time range of the history
+ * /tile.json?z=level&amp;x=column&amp;y=row
+ *             the occupied cells of one TILE * TILE tile of a level of the
+ *             grid, as [x, y, tcp, udp] in cells of that level. Level 0 is
+ *             /cells.json, 4 by 2 tiles; each level below has twice as many
+ *             tiles each way, see {@link ConnectionGrid}. Rows of tiles and
+ *             cells count up from the south pole
+ * /top.json?window=1m&amp;n=10
+ *             the remote hosts, countries and ASNs that built the most
+ *             connections over the last 1m, 15m or 1h, see {@link HeavyHitters}
+ * </pre>
+ * 
+ * One thread renders at a fixed interval (-Dconnectionmap.http.interval,
+ * milliseconds) and everything it produces is encoded once and shared by all
+ * clients. The PNG and cell dumps are cached against the renderer's version
+ * and only rebuilt when the map has changed. Each event stream client is
+ * served from its own handler thread, so a slow browser only delays itself;
+ * a client that falls too far behind is sent a fresh snapshot.
+ */
+final class MapServer {
+    
+    private static final int BACKLOG = 64;
+    private static final long KEEPALIVE_MILLISECONDS = 15000;
+    /** Cells along the side of a tile, at every level. */
+    private static final int TILE = 180;
+    
+    private static final String INDEX = "<!DOCTYPE html>\n"
+            + "<html><head><title>Connection Map</title>"
+            + "<style>body{margin:0;background:#000}img{width:100vw;height:100vh;image-rendering:pixelated}</style>"
+            + "</head><body><img id=\"map\" src=\"frame.png\">"
+            + "<script>new EventSource('events').addEventListener('delta',function(){"
+            + "document.getElementById('map').src='frame.png?'+Date.now();});</script>"
+            + "</body></html>\n";
+    
+    private final ConnectionMap map;
+    private final HttpServer server;
+    private final ScheduledExecutorService ticker;
+    private final long interval;
+    
+    // guarded by this
+    private long version = -1;
+    private byte[] png;
+    private byte[] json;
+    private byte[] binary;
+    private long cellsVersion = -1;
+    
+    // recent broadcasts, guarded by events
+    private final Object events = new Object();
+    private final byte[][] recent = new byte[64][];
+    private long sequence;
+    
+    MapServer(ConnectionMap map, int port) throws IOException {
+        this.map = map;
+        interval = Math.max(10, Settings.getInt("http.interval", 1000));
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::index);
+        server.createContext("/frame.png", this::frame);
+        server.createContext("/cells.json", exchange -> send(exchange, "application/json", cellsJson()));
+        server.createContext("/cells.bin", exchange -> send(exchange, "application/octet-stream", cellsBinary()));
+        server.createContext("/events", this::stream);
+        server.createContext("/history.json", this::history);
+        server.createContext("/tile.json", this::tile);
+        server.createContext("/top.json", this::top);
+        server.createContext("/metrics", exchange -> send(exchange, "text/plain; version=0.0.4; charset=utf-8",
+                Metrics.prometheus().getBytes(StandardCharsets.UTF_8)));
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Renderer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    void start() {
+        ticker.scheduleWithFixedDelay(this::tick, 0, interval, TimeUnit.MILLISECONDS);
+        server.start();
+        System.err.println("Serving the map on " + server.getAddress());
+    }
+    
+    private void tick() {
+        try {
+            BufferedImage image = map.renderImage();
+            MapRenderer renderer = map.renderer();
+            synchronized (this) {
+                if (renderer.version() == version) {
+                    return;
+                }
+                version = renderer.version();
+                png = encode(image);
+            }
+            publish(renderer.redrawn() ? event("snapshot", cellsJson()) : event("delta", delta(renderer)));
+        } catch (IOException | RuntimeException ex) {
+            // an exception would cancel the schedule
+            System.err.println(ex);
+        }
+    }
+    
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+    
+    private byte[] delta(MapRenderer renderer) {
+        ConnectionGrid grid = map.grid();
+        StringBuilder sb = new StringBuilder("{\"version\":").append(renderer.version()).append(",\"cells\":[");
+        int[] first = { 1 };
+        renderer.changedCells(cell -> {
+            if (first[0] == 0) {
+                sb.append(',');
+            }
+            first[0] = 0;
+            appendCell(sb, cell, grid.tcp(cell), grid.udp(cell));
+        });
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static void appendCell(StringBuilder sb, int cell, int tcp, int udp) {
+        sb.append('[').append(cell % ConnectionGrid.WIDTH).append(',').append(cell / ConnectionGrid.WIDTH)
+                .append(',').append(tcp).append(',').append(udp).append(']');
+    }
+    
+    private synchronized void refreshCells() throws IOException {
+        if (cellsVersion == version && json != null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"version\":").append(version)
+                .append(",\"width\":").append(ConnectionGrid.WIDTH)
+                .append(",\"height\":").append(ConnectionGrid.HEIGHT).append(",\"cells\":[");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int[] count = { 0 };
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream cells = new DataOutputStream(body);
+        map.grid().forEach((x, y, tcp, udp) -> {
+            if (count[0]++ > 0) {
+                sb.append(',');
+            }
+            appendCell(sb, y * ConnectionGrid.WIDTH + x, tcp, udp);
+            try {
+                cells.writeInt(y * ConnectionGrid.WIDTH + x);
+                cells.writeInt(tcp);
+                cells.writeInt(udp);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        out.writeInt(ConnectionGrid.WIDTH);
+        out.writeInt(ConnectionGrid.HEIGHT);
+        out.writeLong(version);
+        out.writeInt(count[0]);
+        body.writeTo(out);
+        json = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        binary = bytes.toByteArray();
+        cellsVersion = version;
+    }
+    
+    private byte[] cellsJson() throws IOException {
+        synchronized (this) {
+            refreshCells();
+            return json;
+        }
+    }
+    
+    private byte[] cellsBinary() throws IOException {
+        synchronized (this) {
+            refreshCells();
+            return binary;
+        }
+    }
+    
+    private static byte[] event(String name, byte[] data) {
+        byte[] head = ("event: " + name + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+        byte[] event = new byte[head.length + data.length + 2];
+        System.arraycopy(head, 0, event, 0, head.length);
+        System.arraycopy(data, 0, event, head.length, data.length);
+        event[event.length - 2] = '\n';
+        event[event.length - 1] = '\n';
+        return event;
+    }
+    
+    private void publish(byte[] event) {
+        synchronized (events) {
+            recent[(int) (sequence % recent.length)] = event;
+            sequence++;
+            events.notifyAll();
+        }
+    }
+    
+    private void index(HttpExchange exchange) throws IOException {
+        if (!"/".equals(exchange.getRequestURI().getPath())) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        send(exchange, "text/html; charset=utf-8", INDEX.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void frame(HttpExchange exchange) throws IOException {
+        byte[] body;
+        synchronized (this) {
+            body = png;
+        }
+        if (body == null) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        send(exchange, "image/png", body);
+    }
+    
+    private static void send(HttpExchange exchange, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private void history(HttpExchange exchange) throws IOException {
+        SnapshotLog log = map.history();
+        String query = exchange.getRequestURI().getQuery();
+        long at = Long.MAX_VALUE;
+        if (query != null && query.startsWith("at=")) {
+            try {
+                at = Long.parseLong(query.substring(3));
+            } catch (NumberFormatException ex) {
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+                return;
+            }
+        }
+        SnapshotLog.Snapshot snapshot = log == null ? null : log.read(at);
+        if (snapshot == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"time\":").append(snapshot.time)
+                .append(",\"first\":").append(log.first()).append(",\"last\":").append(log.last())
+                .append(",\"width\":").append(ConnectionGrid.WIDTH)
+                .append(",\"height\":").append(ConnectionGrid.HEIGHT).append(",\"cells\":[");
+        boolean first = true;
+        for (int cell = 0; cell < ConnectionGrid.CELLS; cell++) {
+            if (snapshot.tcp[cell] != 0 || snapshot.udp[cell] != 0) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendCell(sb, cell, snapshot.tcp[cell], snapshot.udp[cell]);
+            }
+        }
+        send(exchange, "application/json", sb.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Found by searching down the grid's pyramid, so an empty part of a
+     * tile costs next to nothing and a busy one costs its occupied cells.
+     */
+    private void tile(HttpExchange exchange) throws IOException {
+        int z = -1, x = -1, y = -1;
+        String query = exchange.getRequestURI().getQuery();
+        try {
+            for (String parameter : query == null ? new String[0] : query.split("&")) {
+                if (parameter.startsWith("z=")) {
+                    z = Integer.parseInt(parameter.substring(2));
+                } else if (parameter.startsWith("x=")) {
+                    x = Integer.parseInt(parameter.substring(2));
+                } else if (parameter.startsWith("y=")) {
+                    y = Integer.parseInt(parameter.substring(2));
+                }
+            }
+        } catch (NumberFormatException ex) {
+            z = -1;
+        }
+        if (z < 0 || z > ConnectionGrid.ZOOM) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+        if (x < 0 || y < 0 || x >= ConnectionGrid.width(z) / TILE || y >= ConnectionGrid.height(z) / TILE) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"z\":").append(z).append(",\"x\":").append(x).append(",\"y\":").append(y)
+                .append(",\"size\":").append(TILE).append(",\"levels\":").append(ConnectionGrid.ZOOM + 1)
+                .append(",\"cells\":[");
+        int[] count = { 0 };
+        map.grid().forEach(z, x * TILE, y * TILE, TILE, TILE, (cx, cy, tcp, udp) -> {
+            if (count[0]++ > 0) {
+                sb.append(',');
+            }
+            sb.append('[').append(cx).append(',').append(cy).append(',').append(tcp).append(',').append(udp).append(']');
+        });
+        send(exchange, "application/json", sb.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void top(HttpExchange exchange) throws IOException {
+        HeavyHitters.Window window = HeavyHitters.Window.MINUTE;
+        int n = 10;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("window=")) {
+                    window = HeavyHitters.Window.of(parameter.substring(7));
+                } else if (parameter.startsWith("n=")) {
+                    try {
+                        n = Integer.parseInt(parameter.substring(2));
+                    } catch (NumberFormatException ex) {
+                        n = -1;
+                    }
+                }
+            }
+        }
+        if (window == null || n < 0 || n > 1000) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"window\":\"").append(window.label).append('"');
+        for (HeavyHitters.Dimension dimension : HeavyHitters.Dimension.values()) {
+            sb.append(",\"").append(dimension == HeavyHitters.Dimension.COUNTRY ? "countries"
+                    : dimension.name().toLowerCase() + "s").append("\":[");
+            boolean first = true;
+            for (HeavyHitters.Hitter hitter : map.top(dimension, window, n)) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append("{\"name\":\"").append(hitter.name()).append("\",\"count\":").append(hitter.count)
+                        .append(",\"error\":").append(hitter.error).append('}');
+            }
+            sb.append(']');
+        }
+        send(exchange, "application/json", sb.append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void stream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            long next;
+            synchronized (events) {
+                next = sequence;
+            }
+            out.write(event("snapshot", cellsJson()));
+            out.flush();
+            while (true) {
+                byte[] event = null;
+                boolean behind = false;
+                synchronized (events) {
+                    if (next == sequence) {
+                        events.wait(KEEPALIVE_MILLISECONDS);
+                    }
+                    if (sequence - next > recent.length) {
+                        // fell too far behind, start over from a snapshot
+                        next = sequence;
+                        behind = true;
+                    } else if (next != sequence) {
+                        event = recent[(int) (next % recent.length)];
+                        next++;
+                    }
+                }
+                if (behind) {
+                    // built outside the lock, which publish() needs too
+                    event = event("snapshot", cellsJson());
+                }
+                // a comment line doubles as a keepalive and finds dead clients
+                out.write(event == null ? ":\n\n".getBytes(StandardCharsets.UTF_8) : event);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ex) {
+            // the client went away
+        }
+    }
+}
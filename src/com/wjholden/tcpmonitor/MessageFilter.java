@@ -0,0 +1,105 @@
+package com.wjholden.tcpmonitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decides in the listener, before anything is copied or queued, whether a
+ * datagram is worth keeping.
+ * 
+ * Only the message IDs on the allow list pass:
+ * -Dconnectionmap.filter.ids=302013,302014,302015,302016 is the default and
+ * "all" turns the filter off. The ID is read straight from the datagram
+ * bytes, see {@link AsaMessageId}.
+ * 
+ * Under sustained overload it is better to keep a consistent fraction of
+ * connections than to lose whichever datagrams happen to arrive when a queue
+ * is full. With -Dconnectionmap.filter.sample=N only connections whose ID
+ * hashes to 0 mod N are kept. A build and its teardown carry the same ID, so
+ * they are kept or dropped together and the map shows a 1-in-N sample of
+ * the real geography. Messages without a connection ID are never sampled.
+ * 
+ * Nothing here allocates, and one filter can be shared by any number of
+ * threads.
+ */
+final class MessageFilter {
+    
+    private static final byte[] CONNECTION = "connection ".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] CONNECTION_IDS = {
+        AsaMessageId.BUILT_TCP, AsaMessageId.TEARDOWN_TCP, AsaMessageId.BUILT_UDP, AsaMessageId.TEARDOWN_UDP
+    };
+    
+    /** Why a datagram was rejected. */
+    enum Verdict { ACCEPT, FILTERED, SAMPLED }
+    
+    private final int[] allowed;
+    private final int sample;
+    
+    /**
+     * @param allowed the message IDs to keep, or null for all of them.
+     * @param sample keep one connection in this many.
+     */
+    MessageFilter(int[] allowed, int sample) {
+        if (allowed != null) {
+            allowed = allowed.clone();
+            Arrays.sort(allowed);
+        }
+        this.allowed = allowed;
+        this.sample = Math.max(1, sample);
+    }
+    
+    static MessageFilter create() {
+        String ids = Settings.getString("filter.ids", null);
+        int[] allowed = CONNECTION_IDS;
+        if ("all".equalsIgnoreCase(ids)) {
+            allowed = null;
+        } else if (ids != null) {
+            try {
+                allowed = Arrays.stream(ids.split(",")).map(String::trim).filter(s -> !s.isEmpty())
+                        .mapToInt(Integer::parseInt).toArray();
+            } catch (NumberFormatException ex) {
+                System.err.println("connectionmap.filter.ids: " + ex);
+            }
+        }
+        return new MessageFilter(allowed, Settings.getInt("filter.sample", 1));
+    }
+    
+    Verdict check(byte[] buf, int offset, int length) {
+        int i = AsaMessageId.indexOf(buf, offset, length);
+        if (allowed != null) {
+            if (i < 0 || Arrays.binarySearch(allowed, AsaMessageId.at(buf, i)) < 0) {
+                return Verdict.FILTERED;
+            }
+        }
+        if (sample == 1) {
+            return Verdict.ACCEPT;
+        }
+        final int limit = offset + length;
+        for (int c = Math.max(offset, i); c + CONNECTION.length < limit; c++) {
+            int k = 0;
+            while (k < CONNECTION.length && buf[c + k] == CONNECTION[k]) {
+                k++;
+            }
+            if (k == CONNECTION.length) {
+                return sampled(buf, c + k, limit);
+            }
+        }
+        return Verdict.ACCEPT;
+    }
+    
+    private Verdict sampled(byte[] buf, int k, int limit) {
+        long connection = 0;
+        int start = k;
+        while (k < limit && buf[k] >= '0' && buf[k] <= '9') {
+            connection = connection * 10 + (buf[k++] - '0');
+        }
+        return k == start || keep(connection) ? Verdict.ACCEPT : Verdict.SAMPLED;
+    }
+    
+    private boolean keep(long connection) {
+        connection ^= connection >>> 33;
+        connection *= 0xff51afd7ed558ccdL;
+        connection ^= connection >>> 33;
+        return (connection & Long.MAX_VALUE) % sample == 0;
+    }
+}
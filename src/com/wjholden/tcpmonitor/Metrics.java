@@ -0,0 +1,348 @@
+package com.wjholden.tcpmonitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, gauges and latency histograms for the whole program.
+ * 
+ * Recording is meant for the hot path: a counter is a LongAdder, and a
+ * histogram is one LongAdder per power of two nanoseconds, so recording is
+ * a leading-zero count and an uncontended add. Gauges, and counters that
+ * their owners keep themselves (queue drops, cache hits), are read only when
+ * someone asks.
+ * 
+ * Everything registered here can be read two ways: as attributes of the
+ * {@value #OBJECT_NAME} MBean (jconsole, VisualVM), and as Prometheus text
+ * from {@link #prometheus()}, which {@link MapServer} serves on /metrics.
+ * Metric names follow Prometheus conventions and labels are baked into the
+ * series key, e.g. {@code syslog_packets_total{listener="multicast:514"}}.
+ */
+final class Metrics {
+    
+    static final String OBJECT_NAME = "com.wjholden.tcpmonitor:type=Metrics";
+    private static final String PREFIX = "connectionmap_";
+    
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+    
+    private Metrics() {
+    }
+    
+    /**
+     * A monotonically increasing count.
+     */
+    static final class Counter {
+        private final LongAdder adder = new LongAdder();
+        
+        void increment() {
+            adder.increment();
+        }
+        
+        void add(long n) {
+            adder.add(n);
+        }
+        
+        long get() {
+            return adder.sum();
+        }
+    }
+    
+    /**
+     * A latency histogram with power of two buckets: bucket i counts
+     * durations of less than 2^i nanoseconds that didn't fit in bucket i-1.
+     * That is a factor of two of resolution, which is plenty to see whether
+     * GeoIP takes microseconds or milliseconds.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+        
+        void record(long nanoseconds) {
+            if (nanoseconds < 0) {
+                nanoseconds = 0;
+            }
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanoseconds))].increment();
+            sum.add(nanoseconds);
+        }
+        
+        /**
+         * Record the time since start, which came from System.nanoTime().
+         */
+        void since(long start) {
+            record(System.nanoTime() - start);
+        }
+        
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+        
+        /**
+         * @return the upper bound in nanoseconds of the bucket holding the
+         * given quantile, or 0 if nothing has been recorded.
+         */
+        long quantile(double q) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << Math.min(62, i);
+                }
+            }
+            return 0;
+        }
+    }
+    
+    /**
+     * All the series sharing one metric name.
+     */
+    private static final class Family {
+        final String type;
+        final String help;
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+        
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+    
+    /**
+     * @param labels alternating label names and values.
+     */
+    static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, "counter", help, labels, new Counter());
+    }
+    
+    static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, "histogram", help, labels, new Histogram());
+    }
+    
+    /**
+     * Register a count that its owner keeps, to be read on demand. It must
+     * only ever go up. Registering the same series again replaces the
+     * supplier.
+     */
+    static void counter(String name, String help, LongSupplier value, String... labels) {
+        supply(name, "counter", help, value, labels);
+    }
+    
+    /**
+     * Register a value to be read on demand. Registering the same series
+     * again replaces the supplier.
+     */
+    static void gauge(String name, String help, LongSupplier value, String... labels) {
+        supply(name, "gauge", help, value, labels);
+    }
+    
+    private static void supply(String name, String type, String help, LongSupplier value, String[] labels) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        }
+        family.series.put(labels(labels), value);
+    }
+    
+    private static Object register(String name, String type, String help, String[] labels, Object metric) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        }
+        // the same series asked for twice is the same counter
+        return family.series.computeIfAbsent(labels(labels), l -> metric);
+    }
+    
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels come in name, value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return sb.append('}').toString();
+    }
+    
+    /**
+     * @return every metric in the Prometheus text exposition format.
+     * Histograms are reported in seconds.
+     */
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            String name = PREFIX + entry.getKey();
+            Family family = entry.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    appendHistogram(sb, name, labels, (Histogram) metric);
+                } else {
+                    sb.append(name).append(labels).append(' ').append(value(metric)).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+    
+    private static void appendHistogram(StringBuilder sb, String name, String labels, Histogram histogram) {
+        long[] counts = new long[Histogram.BUCKETS];
+        int highest = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.buckets[i].sum();
+            if (counts[i] > 0) {
+                highest = i;
+            }
+        }
+        // splice le in after the series' own labels
+        String open = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        long cumulative = 0;
+        for (int i = 0; i <= highest; i++) {
+            cumulative += counts[i];
+            sb.append(name).append("_bucket").append(open).append("le=\"")
+                    .append((double) (1L << Math.min(62, i)) / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append(name).append("_bucket").append(open).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum").append(labels).append(' ').append(histogram.sum.sum() / 1e9).append('\n');
+        sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+    }
+    
+    private static long value(Object metric) {
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        }
+        return ((LongSupplier) metric).getAsLong();
+    }
+    
+    /**
+     * Publish the metrics on the platform MBean server. Safe to call more
+     * than once.
+     */
+    static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+            }
+        } catch (JMException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    /**
+     * Every counter and gauge series as a read-only long attribute named
+     * after its Prometheus series key. Histograms become four attributes:
+     * _count and the _p50, _p99 and _p999 bucket bounds in nanoseconds.
+     */
+    private static final class MBean implements DynamicMBean {
+        
+        private static Map<String, LongSupplier> attributes() {
+            Map<String, LongSupplier> attributes = new ConcurrentSkipListMap<>();
+            for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+                for (Map.Entry<String, Object> series : entry.getValue().series.entrySet()) {
+                    String key = entry.getKey() + series.getKey();
+                    Object metric = series.getValue();
+                    if (metric instanceof Histogram) {
+                        Histogram histogram = (Histogram) metric;
+                        attributes.put(key + "_count", histogram::count);
+                        attributes.put(key + "_p50", () -> histogram.quantile(0.5));
+                        attributes.put(key + "_p99", () -> histogram.quantile(0.99));
+                        attributes.put(key + "_p999", () -> histogram.quantile(0.999));
+                    } else {
+                        attributes.put(key, () -> value(metric));
+                    }
+                }
+            }
+            return attributes;
+        }
+        
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongSupplier value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.getAsLong();
+        }
+        
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, LongSupplier> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                LongSupplier value = attributes.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value.getAsLong()));
+                }
+            }
+            return list;
+        }
+        
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+        
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+        
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // there are no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+        
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String name : attributes().keySet()) {
+                infos.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Connection map metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -4,14 +4,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
-import java.util.Queue;
 
 public class MulticastSyslogListener extends SyslogListener {
     
     private final InetAddress group;
     
-    public MulticastSyslogListener(String group, int port, Queue<String> queue, Object lock) throws UnknownHostException {
-        super(queue, lock, port);
+    public MulticastSyslogListener(String group, int port, Source... sources) throws UnknownHostException {
+        super("multicast", port, sources);
         this.group = InetAddress.getByName(group);
     }
 
@@ -0,0 +1,467 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parses, geolocates and counts syslog messages on several cores.
+ * 
+ * A dispatcher thread takes messages off the ingest ring buffers, one per
+ * {@link Source}, finds the message ID and the outside address without
+ * decoding either (see {@link AsaParser#route}), and hands the message to
+ * one of N workers chosen by a hash of the address text. The worker does the
+ * one full parse. The source queues are served round robin, so a firewall
+ * that floods its queue can't starve the others. Every message about a given
+ * host therefore goes through the same worker in order, so a build can never
+ * be overtaken by its own teardown. Each worker has its own parser, GeoIP
+ * lookup cache and input ring; the only shared state is the atomic
+ * {@link ConnectionGrid}s.
+ * 
+ * Every connection is counted twice: in its source's own grid and in the
+ * merged grid of all sources, which is what is normally drawn. Keeping the
+ * merged grid up to date as we go costs one more atomic increment, where
+ * summing the source grids would cost a pass over every cell per frame.
+ * 
+ * Workers also own a {@link ConnectionTable} of the connections they have
+ * counted, keyed by source and ASA connection ID since two firewalls can
+ * hand out the same ID. Because a teardown is routed to the same worker as
+ * its build, it can be uncounted straight from that table with no second
+ * GeoIP lookup.
+ * Connections whose teardown never arrives are expired after
+ * -Dconnectionmap.connection.ttl seconds (default one hour).
+ * 
+ * The dispatcher never waits for a worker. A message for a worker whose
+ * queue is full is dropped, even from a drop_oldest source since the worker
+ * queues are shared, unless its source has ?overflow=block (see
+ * {@link Source}): then the dispatcher holds on to it and stops taking from
+ * that source alone until the worker has room, so the source's own queue
+ * fills up and blocks its listener while the other sources carry on.
+ * 
+ * The grid can be seeded from a {@link SnapshotLog} at startup with
+ * {@link #restore}. We don't know the IDs of restored connections, so they
+ * go into the tables under made up ones and are counted until they expire.
+ * Snapshots only record the merged grid at level 0, so restored connections
+ * don't belong to any source and are counted in the middle of their cell.
+ * 
+ * Workers: -Dconnectionmap.pipeline.workers (default half the cores).
+ * Worker queue depth: -Dconnectionmap.pipeline.queue.capacity.
+ * GeoIP networks remembered per worker: -Dconnectionmap.geoip.ranges, see
+ * {@link RangeIndex}.
+ * 
+ * Workers also count the hosts, countries and ASNs that build connections
+ * in their own {@link HeavyHitters}, for {@link #top}. The country is read
+ * from the same City record as the location and cached along with it; the
+ * ASN comes from the optional ASN database, with a cache and range index of
+ * its own.
+ * Keys per bucket: -Dconnectionmap.topk.capacity (default 64, 0 to turn
+ * counting off).
+ * 
+ * The workers count parse hits and misses by message ID and messages by
+ * source, the dispatcher the messages it couldn't route as misses, and the
+ * source and worker queues, connection tables and lookup
+ * caches are published as gauges; see {@link Metrics}.
+ */
+final class ParsePipeline {
+    
+    private static final long SWEEP_MILLISECONDS = 10000;
+    private static final long STALL_BACKOFF_NANOS = 50_000;
+    /** The ASA connection ID is in the low bits of a table key, the source above. */
+    private static final int SOURCE_SHIFT = 48;
+    /** Above any real table key. */
+    private static final long RESTORED = 1L << 62;
+    private static final int[] IDS = {
+        AsaMessageId.BUILT_TCP, AsaMessageId.TEARDOWN_TCP, AsaMessageId.BUILT_UDP, AsaMessageId.TEARDOWN_UDP
+    };
+    
+    private final Source[] sources;
+    private final Worker[] workers;
+    private final Thread dispatcher;
+    private final ConnectionGrid grid;
+    private final HeavyHitters[] hitters;
+    private Probe probe;
+    
+    /**
+     * Told about every event a worker has finished with. For measuring
+     * latency in {@link SyslogReplay}; it runs on the worker threads.
+     */
+    interface Probe {
+        void handled(AsaEvent event);
+    }
+    
+    /**
+     * @param asns the ASN database, or null.
+     * @param grid the merged grid, counting the connections of every source.
+     */
+    ParsePipeline(Source[] sources, GeoDatabase database, GeoDatabase asns, ConnectionGrid grid) {
+        this.sources = sources;
+        this.grid = grid;
+        int count = Math.max(1, Settings.getInt("pipeline.workers",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        int capacity = Settings.getInt("pipeline.queue.capacity", 16384);
+        int cacheSize = Settings.getInt("geoip.cache.size", 16384);
+        int ranges = Settings.getInt("geoip.ranges", 65536);
+        long ttl = TimeUnit.SECONDS.toMillis(Settings.getInt("connection.ttl", 3600));
+        int topk = Settings.getInt("topk.capacity", 64);
+        workers = new Worker[count];
+        hitters = new HeavyHitters[topk > 0 ? count : 0];
+        for (int i = 0; i < count; i++) {
+            // shared by every source, so it can't evict for a drop_oldest one
+            workers[i] = new Worker(i, new RingBuffer<>(capacity, RingBuffer.OverflowPolicy.DROP_NEWEST),
+                    new GeoLocator(database, cacheSize, ranges), sources, grid, ttl);
+            if (topk > 0) {
+                hitters[i] = new HeavyHitters(topk);
+                workers[i].hitters = hitters[i];
+                if (asns != null) {
+                    workers[i].asns = new GeoLocator(asns, cacheSize, ranges, GeoLocator.Field.ASN);
+                }
+            }
+        }
+        dispatcher = new Thread(this::dispatch, "Dispatcher");
+        dispatcher.setDaemon(true);
+        
+        for (Source source : sources) {
+            Metrics.gauge("ingest_queue_depth", "Messages waiting for the dispatcher.", source.queue::size,
+                    "source", source.name);
+            Metrics.counter("ingest_queue_dropped_total", "Messages dropped because a source's ingest queue was full.",
+                    source.queue::dropped, "source", source.name);
+        }
+        for (Worker worker : workers) {
+            String id = Integer.toString(worker.id);
+            Metrics.gauge("worker_queue_depth", "Messages waiting for a worker.", worker.queue::size, "worker", id);
+            Metrics.counter("worker_queue_dropped_total", "Messages dropped because a worker's queue was full.",
+                    worker.queue::dropped, "worker", id);
+            Metrics.gauge("connections_active", "Connections currently counted on the map.", () -> worker.active, "worker", id);
+            Metrics.counter("connections_expired_total", "Connections removed because their teardown never came.",
+                    () -> worker.expired, "worker", id);
+            Metrics.counter("geoip_cache_hits_total", "GeoIP lookup cache hits.", worker.locator.cache()::hits, "worker", id);
+            Metrics.counter("geoip_cache_misses_total", "GeoIP lookup cache misses.", worker.locator.cache()::misses, "worker", id);
+            Metrics.counter("geoip_cache_evictions_total", "GeoIP lookup cache evictions.", worker.locator.cache()::evictions, "worker", id);
+            Metrics.gauge("geoip_ranges", "GeoIP networks in the range index.", worker.locator.ranges()::size, "worker", id);
+            Metrics.counter("geoip_range_hits_total", "Cache misses answered by the range index.",
+                    worker.locator.ranges()::hits, "worker", id);
+            Metrics.counter("geoip_range_misses_total", "Cache misses that the range index couldn't answer either.",
+                    worker.locator.ranges()::misses, "worker", id);
+        }
+    }
+    
+    /**
+     * Count the connections in a snapshot as if they had been built at the
+     * time it was taken. Must be called before {@link #start}.
+     * 
+     * @return the number of connections restored.
+     */
+    long restore(SnapshotLog.Snapshot snapshot) {
+        long id = RESTORED;
+        for (int cell = 0; cell < ConnectionGrid.CELLS; cell++) {
+            for (int udp = 0; udp < 2; udp++) {
+                int n = udp == 0 ? snapshot.tcp[cell] : snapshot.udp[cell];
+                for (int i = 0; i < n; i++) {
+                    Worker worker = workers[(int) (id % workers.length)];
+                    worker.connections.put(id++, ConnectionGrid.centre(cell), udp == 1, snapshot.time);
+                    grid.increment(ConnectionGrid.centre(cell), udp == 1);
+                }
+            }
+        }
+        return id - RESTORED;
+    }
+    
+    /**
+     * Must be set before {@link #start}.
+     */
+    void probe(Probe probe) {
+        this.probe = probe;
+    }
+    
+    void start() {
+        for (Worker worker : workers) {
+            // Thread.start() makes the field visible to the worker
+            worker.probe = probe;
+            worker.thread.start();
+        }
+        dispatcher.start();
+    }
+    
+    private void dispatch() {
+        final AsaParser parser = AsaParser.create();
+        // indexed like IDS, with anything else at the end
+        final Metrics.Counter[] misses = misses();
+        final RingBuffer<?>[] queues = new RingBuffer<?>[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            queues[i] = sources[i].queue;
+        }
+        // per source, a message that its worker had no room for, and the worker
+        final Routed[] stalled = new Routed[sources.length];
+        final int[] stalledOn = new int[sources.length];
+        int stalls = 0;
+        int next = 0;
+        int idle = 0;
+        while (true) {
+            try {
+                final int i = next;
+                Source source = sources[i];
+                next = next + 1 == sources.length ? 0 : next + 1;
+                if (stalled[i] != null) {
+                    if (workers[stalledOn[i]].queue.offerIfRoom(stalled[i])) {
+                        stalled[i] = null;
+                        stalls--;
+                        idle = 0;
+                    } else {
+                        idle = idle(idle + 1, stalls, queues);
+                    }
+                    continue;
+                }
+                byte[] message = source.queue.poll();
+                if (message == null) {
+                    idle = idle(idle + 1, stalls, queues);
+                    continue;
+                }
+                idle = 0;
+                long route = parser.route(message, 0, message.length);
+                if (route < 0) {
+                    misses[idIndex(AsaMessageId.find(message, 0, message.length))].increment();
+                    continue;
+                }
+                int worker = shard(route, workers.length);
+                Routed routed = new Routed(source.id, message);
+                if (source.queue.policy() != RingBuffer.OverflowPolicy.BLOCK) {
+                    workers[worker].queue.offer(routed);
+                } else if (!workers[worker].queue.offerIfRoom(routed)) {
+                    stalled[i] = routed;
+                    stalledOn[i] = worker;
+                    stalls++;
+                }
+            } catch (InterruptedException ex) {
+                System.err.println(ex);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Wait once every source has come up empty or stalled in a row.
+     * 
+     * @return the new count of sources in a row with nothing to dispatch.
+     */
+    private int idle(int idle, int stalls, RingBuffer<?>[] queues) throws InterruptedException {
+        if (idle < sources.length) {
+            return idle;
+        }
+        if (stalls > 0) {
+            // a worker will make room without telling us
+            LockSupport.parkNanos(this, STALL_BACKOFF_NANOS);
+        } else {
+            RingBuffer.awaitAny(queues);
+        }
+        return 0;
+    }
+    
+    /**
+     * @return the parse hit counters by message ID, indexed like IDS with
+     * anything else at the end.
+     */
+    private static Metrics.Counter[] hits() {
+        Metrics.Counter[] hits = new Metrics.Counter[IDS.length + 1];
+        for (int i = 0; i <= IDS.length; i++) {
+            String id = i < IDS.length ? Integer.toString(IDS[i]) : "other";
+            hits[i] = Metrics.counter("parse_hits_total", "Messages parsed into a connection event.", "id", id);
+        }
+        return hits;
+    }
+    
+    /**
+     * @return the parse miss counters, like {@link #hits}.
+     */
+    private static Metrics.Counter[] misses() {
+        Metrics.Counter[] misses = new Metrics.Counter[IDS.length + 1];
+        for (int i = 0; i <= IDS.length; i++) {
+            String id = i < IDS.length ? Integer.toString(IDS[i]) : "other";
+            misses[i] = Metrics.counter("parse_misses_total", "Messages that could not be parsed.", "id", id);
+        }
+        return misses;
+    }
+    
+    private static int idIndex(int id) {
+        int i = 0;
+        while (i < IDS.length && IDS[i] != id) {
+            i++;
+        }
+        return i;
+    }
+    
+    static int shard(long key, int shards) {
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) ((key & Long.MAX_VALUE) % shards);
+    }
+    
+    /**
+     * @return the n remote hosts, countries or ASNs that built the most
+     * connections over the window, biggest first. Empty if counting is off.
+     */
+    List<HeavyHitters.Hitter> top(HeavyHitters.Dimension dimension, HeavyHitters.Window window, int n) {
+        return HeavyHitters.top(hitters, dimension, window, n, System.currentTimeMillis());
+    }
+    
+    /**
+     * @return messages dropped because a worker's queue was full.
+     */
+    long dropped() {
+        long dropped = 0;
+        for (Worker worker : workers) {
+            dropped += worker.queue.dropped();
+        }
+        return dropped;
+    }
+    
+    /**
+     * @return the sum of all the workers' lookup cache statistics.
+     */
+    String statistics() {
+        long hits = 0, misses = 0, evictions = 0, dropped = 0, active = 0, expired = 0, networks = 0, rangeHits = 0;
+        for (Worker worker : workers) {
+            hits += worker.locator.cache().hits();
+            misses += worker.locator.cache().misses();
+            evictions += worker.locator.cache().evictions();
+            networks += worker.locator.ranges().size();
+            rangeHits += worker.locator.ranges().hits();
+            dropped += worker.queue.dropped();
+            active += worker.active;
+            expired += worker.expired;
+        }
+        return String.format("%d workers, %d dropped%n%d connections, %d expired%nGeoIP cache: %d hits, %d misses, %d evictions"
+                + "%nGeoIP networks: %d indexed, %d hits",
+                workers.length, dropped, active, expired, hits, misses, evictions, networks, rangeHits);
+    }
+    
+    /**
+     * A message on its way to a worker, with the source it came from.
+     * 
+     * This and the listener's copy of the message are all we allocate per
+     * message, and only for messages the listener's {@link MessageFilter}
+     * kept. Both are garbage by the time the worker is done, so they never
+     * leave the young generation. Pooling them would take a queue back from
+     * every worker to every listener, and size classes for the arrays, which
+     * costs more than the allocation it saves.
+     */
+    private static final class Routed {
+        
+        final int source;
+        final byte[] message;
+        
+        Routed(int source, byte[] message) {
+            this.source = source;
+            this.message = message;
+        }
+    }
+    
+    private static final class Worker implements Runnable {
+        
+        private final int id;
+        private final RingBuffer<Routed> queue;
+        private final GeoLocator locator;
+        private final Source[] sources;
+        private final ConnectionGrid grid;
+        private final ConnectionTable connections = new ConnectionTable(1024);
+        private final long ttl;
+        private final Thread thread;
+        private volatile int active;
+        private volatile long expired;
+        private Probe probe;
+        // null unless heavy hitters are counted, and asns without an ASN database
+        private HeavyHitters hitters;
+        private GeoLocator asns;
+        
+        Worker(int id, RingBuffer<Routed> queue, GeoLocator locator, Source[] sources, ConnectionGrid grid, long ttl) {
+            this.id = id;
+            this.queue = queue;
+            this.locator = locator;
+            this.sources = sources;
+            this.grid = grid;
+            this.ttl = ttl;
+            thread = new Thread(this, "Worker " + id);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final AsaParser parser = AsaParser.create();
+            final AsaEvent event = new AsaEvent();
+            final Metrics.Counter[] hits = hits();
+            final Metrics.Counter[] misses = misses();
+            final Metrics.Counter[] messages = new Metrics.Counter[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                messages[i] = Metrics.counter("source_messages_total", "Messages parsed into a connection event.",
+                        "source", sources[i].name);
+            }
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLISECONDS;
+            while (true) {
+                try {
+                    Routed routed = queue.poll(SWEEP_MILLISECONDS, TimeUnit.MILLISECONDS);
+                    long now = System.currentTimeMillis();
+                    if (routed != null) {
+                        if (parser.parse(routed.message, 0, routed.message.length, event)) {
+                            hits[idIndex(event.messageId)].increment();
+                            messages[routed.source].increment();
+                            handle(routed.source, event, now);
+                            if (probe != null) {
+                                probe.handled(event);
+                            }
+                        } else {
+                            // routed, so the ID was fine but the address wasn't
+                            misses[idIndex(AsaMessageId.find(routed.message, 0, routed.message.length))].increment();
+                        }
+                    }
+                    if (now >= nextSweep) {
+                        expired += connections.expire(now - ttl, this::decrement);
+                        nextSweep = now + SWEEP_MILLISECONDS;
+                    }
+                    active = connections.size();
+                } catch (InterruptedException ex) {
+                    System.err.println(ex);
+                    return;
+                }
+            }
+        }
+        
+        private void handle(int source, AsaEvent event, long now) {
+            if (event.connection < 0) {
+                // Without an ID we could never match the teardown.
+                return;
+            }
+            long key = (long) source << SOURCE_SHIFT | (event.connection & ((1L << SOURCE_SHIFT) - 1));
+            if (event.isBuilt()) {
+                long place = locator.locate(event);
+                if (hitters != null) {
+                    hitters.count(LocationCache.key(event), GeoLocator.country(place),
+                            asns == null ? GeoLocator.UNKNOWN : (int) asns.locate(event), now);
+                }
+                int pixel = GeoLocator.pixel(place);
+                if (pixel == GeoLocator.UNKNOWN) {
+                    return;
+                }
+                int cell = ConnectionGrid.cell(pixel);
+                int previous = connections.put(key, cell, event.isUdp(), now);
+                if (previous != ConnectionTable.ABSENT) {
+                    // We missed the teardown of an earlier connection with this ID.
+                    decrement(key, ConnectionTable.cell(previous), ConnectionTable.isUdp(previous));
+                }
+                grid.increment(cell, event.isUdp());
+                sources[source].grid.increment(cell, event.isUdp());
+            } else {
+                int value = connections.remove(key);
+                if (value != ConnectionTable.ABSENT) {
+                    decrement(key, ConnectionTable.cell(value), ConnectionTable.isUdp(value));
+                }
+            }
+        }
+        
+        private void decrement(long key, int cell, boolean udp) {
+            grid.decrement(cell, udp);
+            if ((key & RESTORED) == 0) {
+                sources[(int) (key >>> SOURCE_SHIFT)].grid.decrement(cell, udp);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Locations for whole networks, so that every address in a network we have
+ * already looked up resolves without asking the database again.
+ * 
+ * A GeoIP database gives the same answer for every address in a network,
+ * and scans and CDNs visit thousands of addresses in the same /24. The
+ * {@link LocationCache} remembers single addresses; this remembers the
+ * network each answer came from, as found by {@link SearchTree}.
+ * 
+ * Networks live in the same 64 bit key space as {@link LocationCache#key}:
+ * IPv4 under the ffff::/16 tag, IPv6 by its upper 64 bits. Networks from
+ * one database never overlap, so the index is three sorted parallel arrays
+ * of first key, last key and value, searched by bisection. Keys are stored
+ * with the sign bit flipped so that signed comparison orders them as
+ * unsigned. Inserting shifts the tail of the arrays, which is cheap next to
+ * the lookup that found the network. When the index is full it is emptied
+ * and fills up again with whatever is current.
+ * 
+ * Not thread safe: each {@link GeoLocator} has its own.
+ */
+final class RangeIndex {
+    
+    /** Value returned by {@link #get} when the key is in no known network. */
+    static final long ABSENT = Long.MIN_VALUE;
+    
+    private final long[] firsts;
+    private final long[] lasts;
+    private final long[] values;
+    private int size;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+    
+    RangeIndex(int capacity) {
+        firsts = new long[capacity];
+        lasts = new long[capacity];
+        values = new long[capacity];
+    }
+    
+    /**
+     * @return the value of the network containing the key, or {@link #ABSENT}.
+     */
+    long get(long key) {
+        int i = floor(key ^ Long.MIN_VALUE);
+        if (i >= 0 && (key ^ Long.MIN_VALUE) <= lasts[i]) {
+            hits.increment();
+            return values[i];
+        }
+        misses.increment();
+        return ABSENT;
+    }
+    
+    /**
+     * Remember the value of every key from first to last inclusive.
+     */
+    void put(long first, long last, long value) {
+        if (firsts.length == 0) {
+            return;
+        }
+        first ^= Long.MIN_VALUE;
+        last ^= Long.MIN_VALUE;
+        int i = floor(first);
+        if (i >= 0 && firsts[i] == first) {
+            lasts[i] = last;
+            values[i] = value;
+            return;
+        }
+        if (size == firsts.length) {
+            clear();
+            resets.increment();
+            i = -1;
+        }
+        int at = i + 1;
+        System.arraycopy(firsts, at, firsts, at + 1, size - at);
+        System.arraycopy(lasts, at, lasts, at + 1, size - at);
+        System.arraycopy(values, at, values, at + 1, size - at);
+        firsts[at] = first;
+        lasts[at] = last;
+        values[at] = value;
+        size++;
+    }
+    
+    /**
+     * @return the index of the last network starting at or before the
+     * (flipped) key, or -1.
+     */
+    private int floor(long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firsts[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+    
+    void clear() {
+        size = 0;
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    int capacity() {
+        return firsts.length;
+    }
+    
+    long hits() {
+        return hits.sum();
+    }
+    
+    long misses() {
+        return misses.sum();
+    }
+    
+    /**
+     * @return the number of times the index filled up and was emptied.
+     */
+    long resets() {
+        return resets.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d networks, %d hits, %d misses, %d resets", size, hits(), misses(), resets());
+    }
+}
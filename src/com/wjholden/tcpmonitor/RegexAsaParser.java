@@ -0,0 +1,60 @@
+package com.wjholden.tcpmonitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original regular expression parser, kept as a reference implementation
+ * for {@link AsaParser}. It is much slower: every message is decoded to a
+ * String and a teardown runs through both patterns.
+ * 
+ * OPEN and CLOSE are the patterns the map has always used, with the message
+ * ID captured where they found it, so they behave as they shipped: they
+ * don't need a "%ASA-n-id:" tag, and the last 30201x that lets them match
+ * wins. AsaParser deliberately differs there; see AsaParserTest.
+ */
+class RegexAsaParser extends AsaParser {
+    
+    // https://www.cisco.com/c/en/us/td/docs/security/asa/syslog/b_syslog/syslogs3.html
+    // %ASA-6-302013: Built {inbound|outbound} TCP connection
+    // %ASA-6-302014: Teardown TCP connection
+    // %ASA-6-302015: Built {inbound|outbound} UDP connection
+    // %ASA-6-302016: Teardown UDP connection
+    private static final String OPEN = ".*(30201[35]).+%s:(.+?)/.*";
+    private static final String CLOSE = ".*(30201[46]).+%s:(.+?)/.*";
+    private static final Pattern CONNECTION_PATTERN = Pattern.compile(".*?connection (\\d+).*");
+    private final Pattern openPattern;
+    private final Pattern closePattern;
+    
+    RegexAsaParser(String outside) {
+        super(outside);
+        openPattern = Pattern.compile(String.format(OPEN, Pattern.quote(outside)));
+        closePattern = Pattern.compile(String.format(CLOSE, Pattern.quote(outside)));
+    }
+
+    @Override
+    boolean parse(byte[] buf, int offset, int length, AsaEvent event) {
+        event.clear();
+        while (length > 0 && (buf[offset + length - 1] == '\n' || buf[offset + length - 1] == '\r')) {
+            length--;
+        }
+        String line = new String(buf, offset, length, StandardCharsets.US_ASCII);
+        Matcher matcher = openPattern.matcher(line);
+        if (!matcher.matches()) {
+            matcher = closePattern.matcher(line);
+            if (!matcher.matches()) {
+                return false;
+            }
+        }
+        event.messageId = Integer.parseInt(matcher.group(1));
+        byte[] address = matcher.group(2).getBytes(StandardCharsets.US_ASCII);
+        
+        Matcher connection = CONNECTION_PATTERN.matcher(line);
+        if (connection.matches()) {
+            event.connection = Long.parseLong(connection.group(1));
+        }
+        
+        return parseAddress(address, 0, address.length, event);
+    }
+}
@@ -0,0 +1,125 @@
+package com.wjholden.tcpmonitor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Renders the map on its own thread so that the event dispatch thread only
+ * ever draws finished frames.
+ * 
+ * The loop renders at most -Dconnectionmap.ui.fps times a second (default
+ * 30). Rendering is incremental and cheap when nothing changed, and a frame
+ * is only published when the renderer's version says the image is different,
+ * so an idle map costs almost nothing and causes no repaints. Anything that
+ * changes the view (panning, the map, the colours) calls {@link #wake} to
+ * render straight away instead of waiting for the next tick.
+ * 
+ * Frames are triple buffered. The loop copies each new frame into its back
+ * buffer and swaps it with the ready one; the EDT swaps the ready buffer with
+ * the one it is showing when it paints. A published frame is never written
+ * to again until the EDT has given it back, and neither side waits for the
+ * other for longer than a swap.
+ */
+final class RenderLoop implements Runnable {
+    
+    private final ConnectionMap map;
+    private final Runnable onFrame;
+    private final long interval;
+    private final Thread thread;
+    private volatile boolean woken;
+    
+    // owned by the render thread
+    private BufferedImage back = image();
+    private long lastVersion = -1;
+    private long lastRewound = -1;
+    private Source lastSelected;
+    
+    // guarded by this
+    private BufferedImage ready = image();
+    private boolean fresh;
+    
+    // owned by the EDT
+    private BufferedImage front;
+    
+    /**
+     * @param onFrame called on the render thread whenever a new frame is
+     * ready, typically to ask Swing for a repaint.
+     */
+    RenderLoop(ConnectionMap map, Runnable onFrame) {
+        this.map = map;
+        this.onFrame = onFrame;
+        interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, Settings.getInt("ui.fps", 30));
+        thread = new Thread(this, "Renderer");
+        thread.setDaemon(true);
+    }
+    
+    private static BufferedImage image() {
+        return new BufferedImage(ConnectionMap.WIDTH, ConnectionMap.HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    }
+    
+    void start() {
+        thread.start();
+    }
+    
+    /**
+     * Render now rather than at the next tick.
+     */
+    void wake() {
+        woken = true;
+        LockSupport.unpark(thread);
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            long next = System.nanoTime() + interval;
+            try {
+                BufferedImage image = map.renderImage();
+                long version = map.version();
+                long rewound = map.rewound();
+                Source selected = map.selected();
+                if (version != lastVersion || rewound != lastRewound || selected != lastSelected) {
+                    lastVersion = version;
+                    lastRewound = rewound;
+                    lastSelected = selected;
+                    int[] from = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                    int[] to = ((DataBufferInt) back.getRaster().getDataBuffer()).getData();
+                    System.arraycopy(from, 0, to, 0, to.length);
+                    publish();
+                    onFrame.run();
+                }
+            } catch (RuntimeException ex) {
+                System.err.println(ex);
+            }
+            long wait;
+            while (!woken && (wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            woken = false;
+        }
+    }
+    
+    private synchronized void publish() {
+        BufferedImage t = ready;
+        ready = back;
+        back = t;
+        fresh = true;
+    }
+    
+    /**
+     * Called by the EDT when painting.
+     * 
+     * @return the newest finished frame, or null before the first one.
+     */
+    synchronized BufferedImage front() {
+        if (fresh) {
+            BufferedImage t = front == null ? image() : front;
+            front = ready;
+            ready = t;
+            fresh = false;
+        }
+        return front;
+    }
+}
@@ -0,0 +1,258 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer used to hand syslog messages from the
+ * listener threads to the parser.
+ * 
+ * This is Dmitry Vyukov's bounded MPMC queue: every slot carries a sequence
+ * number, producers claim slots with a CAS on the tail and consumers with a
+ * CAS on the head. Two listeners feeding the same buffer only ever race on
+ * the tail counter, and nobody takes a monitor or calls notifyAll.
+ * 
+ * The buffer is meant for a single consumer calling {@link #take()}. The
+ * consumer parks when the buffer is empty and producers unpark it after
+ * publishing. {@link #poll()} is safe from any thread, which is what lets
+ * {@link OverflowPolicy#DROP_OLDEST} evict from the producer side.
+ */
+final class RingBuffer<T> {
+    
+    /**
+     * What a producer does when the buffer is full.
+     */
+    enum OverflowPolicy {
+        /** Discard the message being offered. Cheapest, and the default. */
+        DROP_NEWEST,
+        /** Evict the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Wait for the consumer. Only sensible when the source can slow down. */
+        BLOCK
+    }
+    
+    private static final long BLOCK_BACKOFF_NANOS = 50_000;
+    
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final OverflowPolicy policy;
+    private final LongAdder dropped = new LongAdder();
+    private volatile Thread waiter;
+    
+    /**
+     * @param capacity the requested capacity, rounded up to a power of two.
+     * @param policy what to do when a producer finds the buffer full.
+     */
+    RingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity < 2) {
+            capacity = 2;
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = policy;
+    }
+    
+    /**
+     * Add a message, applying the overflow policy if the buffer is full.
+     * 
+     * @return true if the message was queued, false if it was dropped.
+     */
+    boolean offer(T element) {
+        while (!tryOffer(element)) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    dropped.increment();
+                    return false;
+                case DROP_OLDEST:
+                    if (poll() != null) {
+                        dropped.increment();
+                    }
+                    break;
+                case BLOCK:
+                    LockSupport.parkNanos(this, BLOCK_BACKOFF_NANOS);
+                    if (Thread.currentThread().isInterrupted()) {
+                        dropped.increment();
+                        return false;
+                    }
+                    break;
+            }
+        }
+        signal();
+        return true;
+    }
+    
+    /**
+     * Add a message if there is room, whatever the overflow policy. A message
+     * that doesn't fit isn't counted as dropped, since the caller still has
+     * it.
+     * 
+     * @return true if the message was queued.
+     */
+    boolean offerIfRoom(T element) {
+        if (!tryOffer(element)) {
+            return false;
+        }
+        signal();
+        return true;
+    }
+    
+    private void signal() {
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+    
+    private boolean tryOffer(T element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+    
+    /**
+     * @return the oldest message, or null if the buffer is empty.
+     */
+    T poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+    
+    /**
+     * Wait for and remove the oldest message. Only one thread should call this.
+     */
+    T take() throws InterruptedException {
+        T element;
+        while ((element = poll()) == null) {
+            waiter = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return element;
+    }
+    
+    /**
+     * Wait up to the timeout for the oldest message. Only one thread should
+     * call this.
+     * 
+     * @return the message, or null if the timeout elapsed.
+     */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T element;
+        while ((element = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            waiter = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return element;
+    }
+    
+    /**
+     * Wait until at least one of the buffers might have a message. Returns
+     * early on spurious wakeups, so call it in a loop. Only one thread should
+     * consume from these buffers.
+     */
+    static void awaitAny(RingBuffer<?>[] buffers) throws InterruptedException {
+        Thread current = Thread.currentThread();
+        for (RingBuffer<?> buffer : buffers) {
+            buffer.waiter = current;
+        }
+        boolean empty = true;
+        for (RingBuffer<?> buffer : buffers) {
+            empty &= buffer.isEmpty();
+        }
+        if (empty) {
+            LockSupport.park(buffers);
+        }
+        for (RingBuffer<?> buffer : buffers) {
+            buffer.waiter = null;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+    
+    boolean isEmpty() {
+        long position = head.get();
+        return sequences.get((int) position & mask) - (position + 1) < 0;
+    }
+    
+    /**
+     * @return an estimate of the number of queued messages.
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+    
+    int capacity() {
+        return mask + 1;
+    }
+    
+    /**
+     * @return the number of messages discarded because the buffer was full.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+    
+    OverflowPolicy policy() {
+        return policy;
+    }
+}
@@ -0,0 +1,138 @@
+package com.wjholden.tcpmonitor;
+
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.Metadata;
+import com.maxmind.db.Reader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Walks the binary search tree at the start of a MaxMind DB file to find the
+ * network an address belongs to.
+ * 
+ * The reader we ship (maxmind-db 1.2) answers with the record but not with
+ * the prefix length of the network it was found in, which is what
+ * {@link RangeIndex} needs. The tree is simple enough to walk ourselves: one
+ * node per bit of the address, each node a pair of 24, 28 or 32 bit records
+ * pointing left and right, until a record is either the node count (no
+ * data) or larger (a pointer into the data section). The number of bits
+ * consumed is the prefix length. IPv4 addresses start at the node reached
+ * by 96 zero bits in an IPv6 database. The node count, record size and IP
+ * version are the ones the reader decoded from the file's metadata.
+ * 
+ * The file is mapped read only, so this shares the page cache with the
+ * reader and costs no heap. It is safe to use from any number of threads.
+ * 
+ * See https://maxmind.github.io/MaxMind-DB/ for the format.
+ */
+final class SearchTree {
+    
+    /** Set in the result of {@link #prefix} when the network has no record. */
+    static final int NO_DATA = 1 << 8;
+    
+    private final ByteBuffer buffer;
+    private final int nodeCount;
+    private final int recordSize;
+    private final int ipVersion;
+    private final int ipv4Start;
+    
+    private SearchTree(ByteBuffer buffer, int nodeCount, int recordSize, int ipVersion) throws InvalidDatabaseException {
+        if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+            throw new InvalidDatabaseException("Unknown record size " + recordSize);
+        }
+        if ((long) nodeCount * recordSize / 4 > buffer.capacity()) {
+            throw new InvalidDatabaseException("The search tree is larger than the file");
+        }
+        this.buffer = buffer;
+        this.nodeCount = nodeCount;
+        this.recordSize = recordSize;
+        this.ipVersion = ipVersion;
+        int node = 0;
+        if (ipVersion == 6) {
+            for (int i = 0; i < 96 && node < nodeCount; i++) {
+                node = record(node, 0);
+            }
+        }
+        ipv4Start = node;
+    }
+    
+    /**
+     * @param reader the reader open on the same file.
+     */
+    static SearchTree map(File file, Reader reader) throws IOException {
+        Metadata metadata = reader.getMetadata();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SearchTree(buffer, hidden(metadata, "getNodeCount"), hidden(metadata, "getRecordSize"),
+                    metadata.getIpVersion());
+        }
+    }
+    
+    /**
+     * maxmind-db 1.2 decodes the node count and record size but keeps their
+     * getters package private, so we call them reflectively.
+     */
+    private static int hidden(Metadata metadata, String getter) throws InvalidDatabaseException {
+        try {
+            Method method = Metadata.class.getDeclaredMethod(getter);
+            method.setAccessible(true);
+            return (Integer) method.invoke(metadata);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            throw new InvalidDatabaseException("Can't read the metadata: " + ex);
+        }
+    }
+    
+    /**
+     * @return the prefix length of the network containing the outside
+     * address, counted in bits of that address (so an IPv4 /24 is 24), with
+     * {@link #NO_DATA} set if the database has no record for it.
+     */
+    int prefix(AsaEvent event) {
+        int node;
+        int depth = 0;
+        if (!event.v6) {
+            node = ipv4Start;
+            while (depth < 32 && node < nodeCount) {
+                node = record(node, (event.ipv4 >>> (31 - depth)) & 1);
+                depth++;
+            }
+        } else if (ipVersion == 6) {
+            node = 0;
+            while (depth < 128 && node < nodeCount) {
+                node = record(node, (event.ipv6[depth >>> 3] >>> (7 - (depth & 7))) & 1);
+                depth++;
+            }
+        } else {
+            // an IPv4 database knows nothing about IPv6
+            return NO_DATA;
+        }
+        return node == nodeCount ? depth | NO_DATA : depth;
+    }
+    
+    private int record(int node, int bit) {
+        switch (recordSize) {
+            case 24: {
+                int p = node * 6 + bit * 3;
+                return (byteAt(p) << 16) | (byteAt(p + 1) << 8) | byteAt(p + 2);
+            }
+            case 28: {
+                int p = node * 7;
+                int middle = byteAt(p + 3);
+                if (bit == 0) {
+                    return ((middle & 0xf0) << 20) | (byteAt(p) << 16) | (byteAt(p + 1) << 8) | byteAt(p + 2);
+                }
+                return ((middle & 0x0f) << 24) | (byteAt(p + 4) << 16) | (byteAt(p + 5) << 8) | byteAt(p + 6);
+            }
+            default:
+                return buffer.getInt(node * 8 + bit * 4);
+        }
+    }
+    
+    private int byteAt(int index) {
+        return buffer.get(index) & 0xff;
+    }
+}
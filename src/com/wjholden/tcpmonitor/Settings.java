@@ -0,0 +1,54 @@
+package com.wjholden.tcpmonitor;
+
+/**
+ * Startup knobs. Everything is read from system properties prefixed with
+ * "connectionmap." so that a kiosk can be tuned from the command line, e.g.
+ * {@code java -Dconnectionmap.queue.capacity=262144 -jar Connection_Map.jar}.
+ * Bad values are reported and replaced with the default rather than failing
+ * the whole program.
+ */
+final class Settings {
+    
+    private static final String PREFIX = "connectionmap.";
+    
+    private Settings() {
+    }
+    
+    static String getString(String name, String defaultValue) {
+        return System.getProperty(PREFIX + name, defaultValue);
+    }
+    
+    static int getInt(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            System.err.println(PREFIX + name + ": " + ex);
+            return defaultValue;
+        }
+    }
+    
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+    
+    static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(PREFIX + name + ": " + ex);
+            return defaultValue;
+        }
+    }
+}
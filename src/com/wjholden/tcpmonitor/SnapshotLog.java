@@ -0,0 +1,542 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only history of the connection grid, so that the map survives a
+ * restart and can be rewound.
+ * 
+ * Every snapshot is one record in a memory-mapped segment file. Most records
+ * are deltas: the cells whose counts changed since the previous record, as
+ * varint gaps between cell numbers and zigzag varint changes in the counts.
+ * Every {@link #KEYFRAME_INTERVAL} records, and at the start of every
+ * segment, there is a keyframe with every occupied cell instead, so reading
+ * any point in time decodes at most one keyframe and a bounded number of
+ * deltas.
+ * 
+ * <pre>
+ * segment  "SNAP", version, then records until a zero type byte
+ * record   type (1 key, 2 delta), time (long, epoch ms), length, CRC32, payload
+ * key      count, then count * (cell gap, tcp, udp)
+ * delta    count, then count * (cell gap, zigzag tcp change, zigzag udp change)
+ * </pre>
+ * 
+ * Beside each segment is an index file of (time, offset, type) entries, so
+ * opening the log doesn't have to decode anything. A torn write at the end
+ * of a segment fails its checksum and is overwritten by the next append.
+ * 
+ * Segments are preallocated at a fixed size and rolled when full or after a
+ * given age. Whole segments are deleted once they are older than the
+ * retention period, or oldest first to stay under a total size.
+ * 
+ * Thread safe. Appends are expected from one background thread; reads can
+ * come from anywhere.
+ */
+final class SnapshotLog implements Closeable {
+    
+    static final int KEYFRAME_INTERVAL = 60;
+    
+    private static final int MAGIC = 0x534e4150; // "SNAP"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 1 + 8 + 4 + 4;
+    private static final int INDEX_ENTRY = 16;
+    private static final byte KEY = 1;
+    private static final byte DELTA = 2;
+    
+    /**
+     * The grid at one point in time.
+     */
+    static final class Snapshot {
+        final long time;
+        final int[] tcp;
+        final int[] udp;
+        
+        Snapshot(long time, int[] tcp, int[] udp) {
+            this.time = time;
+            this.tcp = tcp;
+            this.udp = udp;
+        }
+    }
+    
+    private final File directory;
+    private final int segmentBytes;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final long maxBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    
+    // the writer's state
+    private Segment active;
+    private int[] lastTcp;
+    private int[] lastUdp;
+    private int sinceKey;
+    private byte[] scratch = new byte[64 * 1024];
+    
+    /**
+     * @param segmentBytes the size of each segment file.
+     * @param segmentMillis start a new segment after this long.
+     * @param retentionMillis delete segments whose newest snapshot is older.
+     * @param maxBytes delete the oldest segments to stay under this size.
+     */
+    SnapshotLog(File directory, int segmentBytes, long segmentMillis, long retentionMillis, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.retentionMillis = retentionMillis;
+        this.maxBytes = maxBytes;
+        File[] files = directory.listFiles((dir, name) -> name.matches("snapshots-\\d+\\.log"));
+        if (files != null) {
+            for (File file : files) {
+                long first = Long.parseLong(file.getName().replaceAll("\\D", ""));
+                try {
+                    Segment segment = new Segment(file, first);
+                    if (segment.count > 0) {
+                        segments.put(first, segment);
+                    } else {
+                        segment.delete();
+                    }
+                } catch (IOException ex) {
+                    System.err.println(file + ": " + ex);
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            if (last.end + 1 < last.buffer.capacity()) {
+                last.openForWriting();
+                active = last;
+            }
+        }
+    }
+    
+    /**
+     * Read the settings under -Dconnectionmap.snapshot. History is off
+     * unless snapshot.dir is set.
+     * 
+     * @return the log, or null if history is off.
+     */
+    static SnapshotLog open() throws IOException {
+        String dir = Settings.getString("snapshot.dir", null);
+        if (dir == null) {
+            return null;
+        }
+        return new SnapshotLog(new File(dir),
+                Settings.getInt("snapshot.segment.size", 16) * 1024 * 1024,
+                Settings.getInt("snapshot.segment.hours", 24) * 3600_000L,
+                Settings.getInt("snapshot.days", 7) * 86400_000L,
+                Settings.getInt("snapshot.max.size", 1024) * 1024L * 1024);
+    }
+    
+    /**
+     * Record the grid as it is now.
+     */
+    void append(long time, ConnectionGrid grid) throws IOException {
+        int[] tcp = new int[ConnectionGrid.CELLS];
+        int[] udp = new int[ConnectionGrid.CELLS];
+        grid.copy(tcp, udp);
+        append(time, tcp, udp);
+    }
+    
+    synchronized void append(long time, int[] tcp, int[] udp) throws IOException {
+        if (active != null && time - active.first >= segmentMillis) {
+            active.closeForWriting();
+            active = null;
+        }
+        boolean key = active == null || lastTcp == null || sinceKey >= KEYFRAME_INTERVAL;
+        int length = encode(key, tcp, udp);
+        if (active != null && active.end + RECORD_HEADER + length + 1 > active.buffer.capacity()) {
+            active.closeForWriting();
+            active = null;
+            if (!key) {
+                key = true;
+                length = encode(true, tcp, udp);
+            }
+        }
+        if (active == null) {
+            if (HEADER + RECORD_HEADER + length + 1 > segmentBytes) {
+                throw new IOException("A snapshot of " + length + " bytes doesn't fit in a segment");
+            }
+            active = Segment.create(new File(directory, "snapshots-" + time + ".log"), time, segmentBytes);
+            segments.put(time, active);
+        }
+        active.append(key ? KEY : DELTA, time, scratch, length, crc);
+        lastTcp = tcp;
+        lastUdp = udp;
+        sinceKey = key ? 1 : sinceKey + 1;
+        compact(time);
+    }
+    
+    private int encode(boolean key, int[] tcp, int[] udp) {
+        int count = 0;
+        for (int cell = 0; cell < tcp.length; cell++) {
+            if (key ? (tcp[cell] | udp[cell]) != 0 : (tcp[cell] != lastTcp[cell] || udp[cell] != lastUdp[cell])) {
+                count++;
+            }
+        }
+        // at most three five byte varints per cell
+        if (scratch.length < 5 + 15 * count) {
+            scratch = new byte[5 + 15 * count];
+        }
+        int p = putVarint(scratch, 0, count);
+        int previous = -1;
+        for (int cell = 0; cell < tcp.length; cell++) {
+            if (key && (tcp[cell] | udp[cell]) != 0) {
+                p = putVarint(scratch, p, cell - previous);
+                p = putVarint(scratch, p, tcp[cell]);
+                p = putVarint(scratch, p, udp[cell]);
+                previous = cell;
+            } else if (!key && (tcp[cell] != lastTcp[cell] || udp[cell] != lastUdp[cell])) {
+                p = putVarint(scratch, p, cell - previous);
+                p = putVarint(scratch, p, zigzag(tcp[cell] - lastTcp[cell]));
+                p = putVarint(scratch, p, zigzag(udp[cell] - lastUdp[cell]));
+                previous = cell;
+            }
+        }
+        return p;
+    }
+    
+    static int putVarint(byte[] buf, int p, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf[p++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[p++] = (byte) value;
+        return p;
+    }
+    
+    private static int getVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+    
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+    
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+    
+    /**
+     * Delete segments that have aged out or don't fit, never the one being
+     * written.
+     */
+    private void compact(long now) {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size();
+        }
+        Iterator<Map.Entry<Long, Segment>> i = segments.entrySet().iterator();
+        while (i.hasNext()) {
+            Segment segment = i.next().getValue();
+            if (segment == active) {
+                break;
+            }
+            if (segment.last() >= now - retentionMillis && total <= maxBytes) {
+                break;
+            }
+            total -= segment.size();
+            i.remove();
+            segment.delete();
+        }
+    }
+    
+    /**
+     * @return the last snapshot taken at or before time, or null if there
+     * isn't one.
+     */
+    synchronized Snapshot read(long time) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(time);
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = entry.getValue();
+        int i = segment.floor(time);
+        if (i < 0) {
+            return null;
+        }
+        int k = i;
+        while (segment.types[k] != KEY) {
+            k--;
+        }
+        int[] tcp = new int[ConnectionGrid.CELLS];
+        int[] udp = new int[ConnectionGrid.CELLS];
+        for (int j = k; j <= i; j++) {
+            segment.apply(j, tcp, udp);
+        }
+        return new Snapshot(segment.times[i], tcp, udp);
+    }
+    
+    /**
+     * @return the newest snapshot, or null if the log is empty.
+     */
+    synchronized Snapshot latest() throws IOException {
+        return segments.isEmpty() ? null : read(Long.MAX_VALUE);
+    }
+    
+    /**
+     * @return the time of the oldest snapshot, or -1 if the log is empty.
+     */
+    synchronized long first() {
+        return segments.isEmpty() ? -1 : segments.firstEntry().getValue().times[0];
+    }
+    
+    /**
+     * @return the time of the newest snapshot, or -1 if the log is empty.
+     */
+    synchronized long last() {
+        return segments.isEmpty() ? -1 : segments.lastEntry().getValue().last();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            active.closeForWriting();
+            active = null;
+        }
+    }
+    
+    /**
+     * One segment file and its index, held in memory as parallel arrays.
+     */
+    private static final class Segment {
+        
+        private final File file;
+        private final File indexFile;
+        private final long first;
+        private MappedByteBuffer buffer;
+        private FileChannel index;
+        private long[] times = new long[64];
+        private int[] offsets = new int[64];
+        private byte[] types = new byte[64];
+        private int count;
+        private int end = HEADER;
+        
+        private Segment(File file, long first, MappedByteBuffer buffer) {
+            this.file = file;
+            this.indexFile = new File(file.getPath().replaceFirst("\\.log$", ".idx"));
+            this.first = first;
+            this.buffer = buffer;
+        }
+        
+        static Segment create(File file, long first, int size) throws IOException {
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            Segment segment = new Segment(file, first, buffer);
+            segment.index = FileChannel.open(segment.indexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            return segment;
+        }
+        
+        /**
+         * Open an existing segment read only, trusting its index as far as
+         * the records it points at check out, or rebuilding the index if it
+         * is missing.
+         */
+        Segment(File file, long first) throws IOException {
+            this(file, first, null);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("not a snapshot segment");
+            }
+            CRC32 crc = new CRC32();
+            if (indexFile.isFile()) {
+                ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+                while (entries.remaining() >= INDEX_ENTRY) {
+                    long time = entries.getLong();
+                    int offset = entries.getInt();
+                    byte type = (byte) entries.getInt();
+                    if (offset != end || !valid(offset, crc)) {
+                        break;
+                    }
+                    add(time, offset, type);
+                }
+            } else {
+                while (valid(end, crc)) {
+                    add(buffer.getLong(end + 1), end, buffer.get(end));
+                }
+                if (count > 0) {
+                    writeIndex();
+                }
+            }
+        }
+        
+        private boolean valid(int offset, CRC32 crc) {
+            if (offset + RECORD_HEADER > buffer.capacity()) {
+                return false;
+            }
+            byte type = buffer.get(offset);
+            int length = buffer.getInt(offset + 9);
+            if ((type != KEY && type != DELTA) || length < 0 || offset + RECORD_HEADER + length > buffer.capacity()) {
+                return false;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+            crc.reset();
+            crc.update(payload);
+            return (int) crc.getValue() == buffer.getInt(offset + 13);
+        }
+        
+        private void add(long time, int offset, byte type) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                types = Arrays.copyOf(types, count * 2);
+            }
+            times[count] = time;
+            offsets[count] = offset;
+            types[count] = type;
+            count++;
+            end = offset + RECORD_HEADER + buffer.getInt(offset + 9);
+        }
+        
+        private void writeIndex() throws IOException {
+            ByteBuffer entries = ByteBuffer.allocate(count * INDEX_ENTRY);
+            for (int i = 0; i < count; i++) {
+                entries.putLong(times[i]).putInt(offsets[i]).putInt(types[i]);
+            }
+            entries.flip();
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (entries.hasRemaining()) {
+                    channel.write(entries);
+                }
+            }
+        }
+        
+        /**
+         * Reopen the newest segment to carry on appending after a restart.
+         * The first append will be a keyframe, since the writer's state was
+         * lost.
+         */
+        void openForWriting() throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            // drop anything after the last good record
+            index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            index.truncate((long) count * INDEX_ENTRY);
+            index.position((long) count * INDEX_ENTRY);
+            buffer.put(end, (byte) 0);
+        }
+        
+        void closeForWriting() throws IOException {
+            buffer.force();
+            index.close();
+            index = null;
+        }
+        
+        void append(byte type, long time, byte[] payload, int length, CRC32 crc) throws IOException {
+            crc.reset();
+            crc.update(payload, 0, length);
+            int offset = end;
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset);
+            record.put(type).putLong(time).putInt(length).putInt((int) crc.getValue()).put(payload, 0, length);
+            // mark the end, in case this segment was reopened over old records
+            if (record.hasRemaining()) {
+                record.put((byte) 0);
+            }
+            buffer.force();
+            add(time, offset, type);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(time).putInt(offset).putInt(type).flip();
+            while (entry.hasRemaining()) {
+                index.write(entry);
+            }
+        }
+        
+        /**
+         * Decode record i into tcp and udp: a keyframe replaces them, a delta
+         * is added to them.
+         */
+        void apply(int i, int[] tcp, int[] udp) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offsets[i] + RECORD_HEADER);
+            boolean key = types[i] == KEY;
+            if (key) {
+                Arrays.fill(tcp, 0);
+                Arrays.fill(udp, 0);
+            }
+            int n = getVarint(record);
+            int cell = -1;
+            for (int j = 0; j < n; j++) {
+                cell += getVarint(record);
+                if (key) {
+                    tcp[cell] = getVarint(record);
+                    udp[cell] = getVarint(record);
+                } else {
+                    tcp[cell] += unzigzag(getVarint(record));
+                    udp[cell] += unzigzag(getVarint(record));
+                }
+            }
+        }
+        
+        /**
+         * @return the index of the last record at or before time, or -1.
+         */
+        int floor(long time) {
+            int i = Arrays.binarySearch(times, 0, count, time);
+            if (i < 0) {
+                return -i - 2;
+            }
+            // several snapshots in the same millisecond: take the last
+            while (i + 1 < count && times[i + 1] == time) {
+                i++;
+            }
+            return i;
+        }
+        
+        long last() {
+            return times[count - 1];
+        }
+        
+        long size() {
+            return file.length() + indexFile.length();
+        }
+        
+        void delete() {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException ex) {
+                    System.err.println(ex);
+                }
+            }
+            if (!file.delete() || (indexFile.exists() && !indexFile.delete())) {
+                System.err.println("Could not delete " + file);
+            }
+        }
+    }
+}
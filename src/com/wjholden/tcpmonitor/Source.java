@@ -0,0 +1,198 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One firewall, or group of firewalls, that we collect syslog from.
+ * 
+ * Each source has its own ingest queue, so a chatty firewall can only
+ * overflow its own queue, and its own {@link ConnectionGrid}. The pipeline
+ * also adds every connection to a merged grid, which is what is normally
+ * drawn.
+ * 
+ * Sources are configured with -Dconnectionmap.sources, a list separated by
+ * semicolons or whitespace of [name=]uri:
+ * 
+ * <pre>
+ * udp://239.5.1.4:514          join a multicast group
+ * udp://:514                   plain UDP on every interface
+ * tcp://:601                   TCP syslog, octet counted or newline framed (RFC 6587)
+ * file:///var/log/asa.log      follow a file like tail -F, one message per line
+ * </pre>
+ * 
+ * UDP and TCP sources take ?from=address,address to accept only those
+ * senders. Several sources can share a port this way, e.g.
+ * {@code dc1=udp://:514?from=10.1.1.1 dc2=udp://:514?from=10.2.1.1}, and a
+ * source on the same port without a from list takes everything else.
+ * 
+ * Any source takes ?overflow=policy, one of drop_newest, drop_oldest or
+ * block (see {@link RingBuffer.OverflowPolicy}), for what its listener does
+ * when the source's queue is full. The default is
+ * -Dconnectionmap.queue.overflow, or drop_newest. Only block sources that
+ * can slow down, TCP and files: a blocked UDP listener still loses
+ * whatever the kernel can't buffer, and holds up the other sources sharing
+ * its socket. Parameters are separated by &amp;, e.g.
+ * {@code tcp://:601?from=10.1.1.1&overflow=block}.
+ * 
+ * Past the ingest queue, drop_oldest acts like drop_newest: the worker queues
+ * are shared by every source, and evicting the oldest message there could
+ * throw away another source's. Only block carries on to the workers (see
+ * {@link ParsePipeline}).
+ * 
+ * Without the setting there is a single source, the multicast group
+ * 239.5.1.4:514, with plain UDP on port 514 added if
+ * -Dconnectionmap.unicast=true.
+ */
+final class Source {
+    
+    /** The most sources we can tell apart in a {@link ConnectionTable} key. */
+    static final int MAX_SOURCES = 1 << 14;
+    
+    final int id;
+    final String name;
+    final URI uri;
+    final RingBuffer<byte[]> queue;
+    final ConnectionGrid grid = new ConnectionGrid();
+    /** The senders this source accepts, or null for any. */
+    final Set<InetAddress> from;
+    
+    Source(int id, String name, URI uri, Set<InetAddress> from, RingBuffer<byte[]> queue) {
+        this.id = id;
+        this.name = name;
+        this.uri = uri;
+        this.from = from;
+        this.queue = queue;
+    }
+    
+    /**
+     * @return a source that takes everything, for tools and tests.
+     */
+    static Source of(String name, RingBuffer<byte[]> queue) {
+        return new Source(0, name, null, null, queue);
+    }
+    
+    static List<Source> configure() throws IOException {
+        String spec = Settings.getString("sources", null);
+        if (spec == null) {
+            spec = "multicast=udp://239.5.1.4:514";
+            if (Settings.getBoolean("unicast", false)) {
+                spec += " unicast=udp://:514";
+            }
+        }
+        List<Source> sources = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String entry : spec.trim().split("[;\\s]+")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int scheme = entry.indexOf("://");
+            String name = equals > 0 && (scheme < 0 || equals < scheme) ? entry.substring(0, equals) : null;
+            URI uri;
+            try {
+                // java.net.URI has no port without a host, so "udp://:514" means every interface
+                uri = new URI((name == null ? entry : entry.substring(equals + 1)).replace("://:", "://0.0.0.0:"));
+            } catch (URISyntaxException ex) {
+                throw new IOException("connectionmap.sources: " + ex.getMessage());
+            }
+            if (!"udp".equals(uri.getScheme()) && !"tcp".equals(uri.getScheme()) && !"file".equals(uri.getScheme())) {
+                throw new IOException("connectionmap.sources: unknown scheme in " + entry);
+            }
+            if (!"file".equals(uri.getScheme()) && uri.getPort() < 0) {
+                throw new IOException("connectionmap.sources: no port in " + entry);
+            }
+            if (name == null) {
+                name = "file".equals(uri.getScheme()) ? uri.getPath() : uri.getScheme() + ":" + uri.getPort();
+            }
+            if (!names.add(name)) {
+                throw new IOException("connectionmap.sources: " + name + " is used twice");
+            }
+            Set<InetAddress> from = null;
+            RingBuffer.OverflowPolicy overflow = Settings.getEnum("queue.overflow", RingBuffer.OverflowPolicy.class,
+                    RingBuffer.OverflowPolicy.DROP_NEWEST);
+            String query = uri.getQuery();
+            for (String parameter : query == null ? new String[0] : query.split("&")) {
+                if (parameter.startsWith("from=")) {
+                    from = new HashSet<>();
+                    for (String address : parameter.substring(5).split(",")) {
+                        from.add(InetAddress.getByName(address.trim()));
+                    }
+                } else if (parameter.startsWith("overflow=")) {
+                    try {
+                        overflow = RingBuffer.OverflowPolicy.valueOf(
+                                parameter.substring(9).trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IOException("connectionmap.sources: unknown overflow policy in " + entry);
+                    }
+                } else {
+                    throw new IOException("connectionmap.sources: unknown parameter " + parameter + " in " + entry);
+                }
+            }
+            sources.add(new Source(sources.size(), name, uri, from,
+                    new RingBuffer<>(Settings.getInt("queue.capacity", 65536), overflow)));
+        }
+        if (sources.isEmpty() || sources.size() > MAX_SOURCES) {
+            throw new IOException("connectionmap.sources: need between 1 and " + MAX_SOURCES + " sources");
+        }
+        return sources;
+    }
+    
+    /**
+     * Create the listeners for the sources, one per socket or file. Sources
+     * that share a scheme, address and port share a listener, which tells
+     * them apart by sender.
+     */
+    static List<SyslogListener> listeners(List<Source> sources) throws IOException {
+        Map<String, List<Source>> groups = new LinkedHashMap<>();
+        for (Source source : sources) {
+            String key = source.uri.getScheme() + "://" + source.uri.getHost() + ":" + source.uri.getPort() + source.uri.getPath();
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(source);
+        }
+        boolean channel = "channel".equals(Settings.getString("listener", "socket"));
+        List<SyslogListener> listeners = new ArrayList<>();
+        for (List<Source> group : groups.values()) {
+            Source[] members = group.toArray(new Source[0]);
+            URI uri = members[0].uri;
+            String host = uri.getHost();
+            InetAddress address = host == null ? null : InetAddress.getByName(host);
+            if (address != null && address.isAnyLocalAddress()) {
+                address = null;
+            }
+            switch (uri.getScheme()) {
+                case "udp":
+                    if (address != null && !address.isMulticastAddress()) {
+                        throw new IOException("connectionmap.sources: " + uri + " is not a multicast group");
+                    }
+                    if (channel) {
+                        listeners.add(new ChannelSyslogListener(address, uri.getPort(), members));
+                    } else if (address != null) {
+                        listeners.add(new MulticastSyslogListener(host, uri.getPort(), members));
+                    } else {
+                        listeners.add(new UnicastSyslogListener(uri.getPort(), members));
+                    }
+                    break;
+                case "tcp":
+                    listeners.add(new TcpSyslogListener(address, uri.getPort(), members));
+                    break;
+                default:
+                    listeners.add(new FileTailListener(uri.getPath(), members));
+            }
+        }
+        return listeners;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,182 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.Arrays;
+
+/**
+ * The Space-Saving heavy hitters summary (Metwally, Agrawal and El Abbadi,
+ * "Efficient Computation of Frequent and Top-k Elements in Data Streams",
+ * 2005) over long keys.
+ * 
+ * At most capacity keys are counted. A key that isn't counted yet takes
+ * over the slot of the key with the smallest count and inherits that count
+ * as its error. Every count therefore overestimates the truth by at most its
+ * error, and any key seen more than total / capacity times is guaranteed to
+ * be in the summary.
+ * 
+ * The smallest count is kept at the root of a binary min-heap of slots, and
+ * keys are found through an open addressing index, so an update costs
+ * O(log capacity) and nothing is allocated after construction. Not thread
+ * safe.
+ */
+final class SpaceSaving {
+    
+    /**
+     * Receives the counted keys, see {@link #forEach}.
+     */
+    interface Visitor {
+        void visit(long key, long count, long error);
+    }
+    
+    private final long[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    // slots ordered by count, and the position of every slot in it
+    private final int[] heap;
+    private final int[] positions;
+    // slot + 1 for every counted key, 0 for empty
+    private final int[] index;
+    private final int mask;
+    private int size;
+    private long total;
+    
+    SpaceSaving(int capacity) {
+        capacity = Math.max(1, capacity);
+        keys = new long[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        positions = new int[capacity];
+        int buckets = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        index = new int[buckets];
+        mask = buckets - 1;
+    }
+    
+    void offer(long key) {
+        total++;
+        int slot = find(key);
+        if (slot >= 0) {
+            counts[slot]++;
+            down(positions[slot]);
+            return;
+        }
+        if (size < keys.length) {
+            slot = size++;
+            keys[slot] = key;
+            counts[slot] = 1;
+            errors[slot] = 0;
+            heap[slot] = slot;
+            positions[slot] = slot;
+            up(slot);
+        } else {
+            slot = heap[0];
+            unindex(keys[slot]);
+            keys[slot] = key;
+            errors[slot] = counts[slot];
+            counts[slot]++;
+            down(0);
+        }
+        int i = hash(key);
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = slot + 1;
+    }
+    
+    private int find(long key) {
+        for (int i = hash(key); index[i] != 0; i = (i + 1) & mask) {
+            if (keys[index[i] - 1] == key) {
+                return index[i] - 1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Remove a key from the index with backward shift deletion, as in
+     * {@link ConnectionTable}.
+     */
+    private void unindex(long key) {
+        int hole = hash(key);
+        while (keys[index[hole] - 1] != key) {
+            hole = (hole + 1) & mask;
+        }
+        for (int j = (hole + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+            int home = hash(keys[index[j] - 1]);
+            // move j back into the hole unless its home lies cyclically in (hole, j]
+            boolean stays = hole <= j ? (home > hole && home <= j) : (home > hole || home <= j);
+            if (!stays) {
+                index[hole] = index[j];
+                hole = j;
+            }
+        }
+        index[hole] = 0;
+    }
+    
+    private int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+    
+    private void up(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[heap[position]] >= counts[heap[parent]]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+    
+    private void down(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[heap[left]] < counts[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && counts[heap[right]] < counts[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+    
+    private void swap(int a, int b) {
+        int t = heap[a];
+        heap[a] = heap[b];
+        heap[b] = t;
+        positions[heap[a]] = a;
+        positions[heap[b]] = b;
+    }
+    
+    void forEach(Visitor visitor) {
+        for (int slot = 0; slot < size; slot++) {
+            visitor.visit(keys[slot], counts[slot], errors[slot]);
+        }
+    }
+    
+    void clear() {
+        size = 0;
+        total = 0;
+        Arrays.fill(index, 0);
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    /**
+     * @return the number of keys offered since the last {@link #clear}.
+     */
+    long total() {
+        return total;
+    }
+}
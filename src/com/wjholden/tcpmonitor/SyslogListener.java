@@ -3,29 +3,122 @@ package com.wjholden.tcpmonitor;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.Queue;
+import java.net.InetAddress;
+import java.util.Arrays;
 
+/**
+ * Receives syslog for one or more {@link Source}s and queues each message,
+ * as raw bytes, on its source's ring buffer.
+ * 
+ * Sources that share a socket are told apart by the sender's address. A
+ * message goes to the first source whose from list names the sender, or
+ * else to the source without a from list; with neither it is counted as
+ * unrouted and dropped.
+ */
 public abstract class SyslogListener implements Runnable {
-    protected final Queue<String> queue;
-    protected final Object lock;
+    protected final Source[] sources;
     protected final int port;
-
-    public SyslogListener(Queue<String> queue, Object lock, int port) {
-        this.queue = queue;
-        this.lock = lock;
+    protected final String name;
+    protected final Metrics.Counter packets;
+    protected final Metrics.Counter bytes;
+    protected final Metrics.Counter filtered;
+    protected final Metrics.Counter sampled;
+    protected final Metrics.Counter unrouted;
+    protected final MessageFilter filter = MessageFilter.create();
+    // the source for senders nobody claims, if any
+    private final Source fallback;
+    
+    /**
+     * @param name identifies this listener in the metrics.
+     * @param port the port listened on, or 0 if there isn't one.
+     */
+    public SyslogListener(String name, int port, Source... sources) {
+        this.sources = sources;
         this.port = port;
+        this.name = port == 0 ? name : name + ":" + port;
+        Source any = null;
+        for (Source source : sources) {
+            if (source.from == null && any == null) {
+                any = source;
+            }
+        }
+        fallback = any;
+        packets = Metrics.counter("syslog_packets_total", "Datagrams received.", "listener", this.name);
+        bytes = Metrics.counter("syslog_bytes_total", "Datagram payload bytes received.", "listener", this.name);
+        filtered = Metrics.counter("syslog_filtered_total",
+                "Datagrams discarded by the listener because their message ID is not wanted.", "listener", this.name);
+        sampled = Metrics.counter("syslog_sampled_total",
+                "Datagrams discarded by the listener's 1-in-N connection sampling.", "listener", this.name);
+        unrouted = Metrics.counter("syslog_unrouted_total",
+                "Messages discarded because no source accepts their sender.", "listener", this.name);
     }
     
     protected void receive(DatagramSocket socket) throws IOException {
-        byte[] buf = new byte[1500];    
+        byte[] buf = new byte[65535];
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
         while (true) {
             socket.receive(packet);
-            String message = new String(buf, 0, packet.getLength() - 1);
-            synchronized(lock) {
-                queue.add(message);
-                lock.notifyAll();
+            // Messages are queued as raw bytes. Any trailing newline is the
+            // parser's problem; chopping off the last byte here used to eat a
+            // real character from messages that didn't have one.
+            deliver(packet.getAddress(), buf, 0, packet.getLength());
+        }
+    }
+    
+    /**
+     * Count, filter, route and queue one message.
+     * 
+     * @param sender where the message came from, or null if unknown.
+     */
+    protected void deliver(InetAddress sender, byte[] buf, int offset, int length) {
+        packets.increment();
+        bytes.add(length);
+        if (!accept(filter.check(buf, offset, length))) {
+            return;
+        }
+        Source source = route(sender);
+        if (source != null) {
+            // a copy, since buf is reused; see ParsePipeline.Routed for why it isn't pooled
+            source.queue.offer(Arrays.copyOfRange(buf, offset, offset + length));
+        }
+    }
+    
+    /**
+     * @return the source that takes messages from the sender, or null after
+     * counting the message as unrouted.
+     */
+    protected Source route(InetAddress sender) {
+        if (sources.length == 1 && fallback != null) {
+            return fallback;
+        }
+        if (sender != null) {
+            for (Source source : sources) {
+                if (source.from != null && source.from.contains(sender)) {
+                    return source;
+                }
             }
         }
+        if (fallback == null) {
+            unrouted.increment();
+        }
+        return fallback;
+    }
+    
+    /**
+     * Count a {@link MessageFilter} verdict.
+     * 
+     * @return true if the message should be queued.
+     */
+    protected boolean accept(MessageFilter.Verdict verdict) {
+        switch (verdict) {
+            case FILTERED:
+                filtered.increment();
+                return false;
+            case SAMPLED:
+                sampled.increment();
+                return false;
+            default:
+                return true;
+        }
     }
 }
@@ -0,0 +1,562 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a syslog capture through the real pipeline, for load testing
+ * without a firewall.
+ * 
+ * <pre>
+ * java -cp Connection_Map.jar com.wjholden.tcpmonitor.SyslogReplay [options] capture
+ * 
+ *   --speed N      replay at N times the captured rate (default 1)
+ *   --max          replay as fast as possible
+ *   --rate N       ignore the capture's timing and send N messages per second
+ *   --repeat N     replay the capture N times, with new connection IDs each time
+ *   --unicast      send over loopback UDP to a UnicastSyslogListener (default)
+ *   --multicast    send to 239.5.1.4 for a MulticastSyslogListener
+ *   --in-process   skip the network and offer straight to the ingest queue
+ *   --port N       the listener's port (default 514)
+ * </pre>
+ * 
+ * The capture is either a pcap file (every UDP payload is taken to be a
+ * syslog message) or text with one message per line. Text timestamps are
+ * read from the usual "Oct 18 2026 12:00:00" or "Oct 18 12:00:00" header;
+ * messages that share a second are spread evenly across it.
+ * 
+ * Every pass after the first moves the connection IDs up past the capture's
+ * largest, so the pipeline sees new connections rather than the same ones
+ * built again, and each send has a latency key of its own. All the passes
+ * are made up before the clock starts and held in memory.
+ * 
+ * The listener, ingest queue, pipeline and grid all run in this JVM with the
+ * usual -Dconnectionmap settings, so the GeoIP database is needed as
+ * always. At the end we report the sustained rate, where messages were
+ * dropped, and the latency from send to counted (or uncounted) on the grid.
+ */
+public final class SyslogReplay {
+    
+    private static final String GROUP = "239.5.1.4";
+    private static final long SETTLE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final String CONNECTION = "connection ";
+    private static final Pattern TIMESTAMP = Pattern.compile(
+            "(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec) +(\\d{1,2}) +(?:\\d{4} +)?(\\d{2}):(\\d{2}):(\\d{2})");
+    private static final List<String> MONTHS = Arrays.asList(
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec");
+    
+    private enum Target { UNICAST, MULTICAST, IN_PROCESS }
+    
+    /** A captured message and when it was sent, in nanoseconds from any origin. */
+    private static final class Message {
+        final long time;
+        final byte[] payload;
+        
+        Message(long time, byte[] payload) {
+            this.time = time;
+            this.payload = payload;
+        }
+    }
+    
+    private final List<Message> capture;
+    private final double speed;
+    private final long interval;
+    private final int repeat;
+    
+    /** What to send on each pass, and its latency key or -1. */
+    private byte[][][] payloads;
+    private long[][] keys;
+    
+    private final Map<Long, Long> inflight = new ConcurrentHashMap<>();
+    private long[] latencies;
+    private final AtomicInteger measured = new AtomicInteger();
+    private final AtomicInteger handled = new AtomicInteger();
+    
+    private SyslogReplay(List<Message> capture, double speed, long interval, int repeat) {
+        this.capture = capture;
+        this.speed = speed;
+        this.interval = interval;
+        this.repeat = repeat;
+    }
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double speed = 1;
+        long interval = 0;
+        int repeat = 1;
+        int port = 514;
+        Target target = Target.UNICAST;
+        String file = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--speed":
+                        speed = Double.parseDouble(args[++i]);
+                        break;
+                    case "--max":
+                        speed = 0;
+                        break;
+                    case "--rate":
+                        interval = (long) (1e9 / Double.parseDouble(args[++i]));
+                        break;
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    case "--unicast":
+                        target = Target.UNICAST;
+                        break;
+                    case "--multicast":
+                        target = Target.MULTICAST;
+                        break;
+                    case "--in-process":
+                        target = Target.IN_PROCESS;
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        file = args[i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            file = null;
+        }
+        if (file == null) {
+            System.err.println("usage: SyslogReplay [--speed N | --max | --rate N] [--repeat N] "
+                    + "[--unicast | --multicast | --in-process] [--port N] capture");
+            System.exit(1);
+        }
+        
+        List<Message> capture = read(file);
+        if (capture.isEmpty()) {
+            System.err.println("No messages in " + file);
+            System.exit(1);
+        }
+        System.out.println("Read " + capture.size() + " messages from " + file);
+        new SyslogReplay(capture, speed, interval, repeat).run(target, port);
+        System.exit(0);
+    }
+    
+    private void run(Target target, int port) throws IOException, InterruptedException {
+        RingBuffer<byte[]> queue = new RingBuffer<>(Settings.getInt("queue.capacity", 65536),
+                Settings.getEnum("queue.overflow", RingBuffer.OverflowPolicy.class, RingBuffer.OverflowPolicy.DROP_NEWEST));
+        Source source = Source.of("replay", queue);
+        ParsePipeline pipeline = new ParsePipeline(new Source[] {source}, new GeoDatabase(), null, new ConnectionGrid());
+        latencies = new long[capture.size() * repeat];
+        pipeline.probe(this::handled);
+        pipeline.start();
+        
+        SyslogListener listener = null;
+        if (target == Target.UNICAST) {
+            listener = new UnicastSyslogListener(port, source);
+        } else if (target == Target.MULTICAST) {
+            listener = new MulticastSyslogListener(GROUP, port, source);
+        }
+        if (listener != null) {
+            Thread thread = new Thread(listener, "Listener");
+            thread.setDaemon(true);
+            thread.start();
+            // give it a moment to bind
+            Thread.sleep(500);
+        }
+        
+        long sent = 0;
+        long start;
+        long finish;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0,
+                    target == Target.MULTICAST ? InetAddress.getByName(GROUP) : InetAddress.getLoopbackAddress(), port);
+            prepare(listener == null);
+            long origin = capture.get(0).time;
+            long span = capture.get(capture.size() - 1).time - origin;
+            start = System.nanoTime();
+            long offset = 0;
+            for (int r = 0; r < repeat; r++) {
+                for (int i = 0; i < capture.size(); i++) {
+                    Message message = capture.get(i);
+                    long due;
+                    if (interval > 0) {
+                        due = start + sent * interval;
+                    } else if (speed > 0) {
+                        due = start + (long) ((offset + message.time - origin) / speed);
+                    } else {
+                        due = 0;
+                    }
+                    pace(due);
+                    if (keys[r][i] >= 0) {
+                        inflight.put(keys[r][i], System.nanoTime());
+                    }
+                    if (listener == null) {
+                        queue.offer(payloads[r][i]);
+                    } else {
+                        packet.setData(payloads[r][i]);
+                        socket.send(packet);
+                    }
+                    sent++;
+                }
+                // leave a gap between repetitions like the one between messages
+                offset += span + span / Math.max(1, capture.size() - 1);
+            }
+            finish = System.nanoTime();
+        }
+        
+        // wait for the pipeline to go quiet
+        int last = -1;
+        long quiet = System.nanoTime();
+        while (System.nanoTime() - quiet < SETTLE_NANOS) {
+            Thread.sleep(50);
+            int now = handled.get();
+            if (now != last || queue.size() > 0) {
+                last = now;
+                quiet = System.nanoTime();
+            }
+        }
+        
+        report(sent, finish - start, listener, queue, pipeline);
+    }
+    
+    /**
+     * Make the payloads and latency keys of every pass.
+     * 
+     * @param copy whether every payload must be an array of its own, as the
+     * ingest queue takes ownership of what it's offered.
+     */
+    private void prepare(boolean copy) {
+        AsaParser parser = AsaParser.create();
+        AsaEvent event = new AsaEvent();
+        int n = capture.size();
+        // each message's connection ID or -1, its type, and where its digits are
+        long[] ids = new long[n];
+        int[] types = new int[n];
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        long largest = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] payload = capture.get(i).payload;
+            ids[i] = -1;
+            if (parser.parse(payload, 0, payload.length, event) && event.connection >= 0) {
+                // the parser read the first "connection " after the tag
+                String text = new String(payload, StandardCharsets.US_ASCII);
+                int start = text.indexOf(CONNECTION, AsaMessageId.indexOf(payload, 0, payload.length)) + CONNECTION.length();
+                int end = start;
+                while (end < payload.length && payload[end] >= '0' && payload[end] <= '9') {
+                    end++;
+                }
+                ids[i] = event.connection;
+                types[i] = event.messageId - AsaMessageId.BUILT_TCP;
+                starts[i] = start;
+                ends[i] = end;
+                largest = Math.max(largest, event.connection);
+            }
+        }
+        // a power of ten, so the IDs still read as the captured ones
+        long stride = 1;
+        while (stride <= largest) {
+            stride *= 10;
+        }
+        
+        payloads = new byte[repeat][n][];
+        keys = new long[repeat][n];
+        for (int r = 0; r < repeat; r++) {
+            for (int i = 0; i < n; i++) {
+                byte[] payload = capture.get(i).payload;
+                if (ids[i] >= 0 && r > 0) {
+                    long id = ids[i] + r * stride;
+                    payloads[r][i] = renumber(payload, starts[i], ends[i], id);
+                    keys[r][i] = key(id, types[i]);
+                } else {
+                    payloads[r][i] = copy ? payload.clone() : payload;
+                    keys[r][i] = ids[i] >= 0 ? key(ids[i], types[i]) : -1;
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the payload with the digits from start to end replaced by id.
+     */
+    private static byte[] renumber(byte[] payload, int start, int end, long id) {
+        byte[] digits = Long.toString(id).getBytes(StandardCharsets.US_ASCII);
+        byte[] renumbered = new byte[payload.length - (end - start) + digits.length];
+        System.arraycopy(payload, 0, renumbered, 0, start);
+        System.arraycopy(digits, 0, renumbered, start, digits.length);
+        System.arraycopy(payload, end, renumbered, start + digits.length, payload.length - end);
+        return renumbered;
+    }
+    
+    private static void pace(long due) {
+        long wait;
+        // park until close, then spin on nanoTime, since a park can oversleep by
+        // tens of microseconds
+        while ((wait = due - System.nanoTime()) > 0) {
+            if (wait > 100_000) {
+                LockSupport.parkNanos(wait - 50_000);
+            }
+        }
+    }
+    
+    private static long key(AsaEvent event) {
+        return key(event.connection, event.messageId - AsaMessageId.BUILT_TCP);
+    }
+    
+    private static long key(long connection, int type) {
+        return connection * 4 + type;
+    }
+    
+    private void handled(AsaEvent event) {
+        long now = System.nanoTime();
+        handled.incrementAndGet();
+        Long sent = inflight.remove(key(event));
+        if (sent != null) {
+            int i = measured.getAndIncrement();
+            if (i < latencies.length) {
+                latencies[i] = now - sent;
+            }
+        }
+    }
+    
+    private void report(long sent, long nanos, SyslogListener listener, RingBuffer<byte[]> queue, ParsePipeline pipeline) {
+        double seconds = nanos / 1e9;
+        System.out.printf("Sent %d messages in %.3f s: %.0f messages/s%n", sent, seconds, sent / seconds);
+        long socket = listener == null ? 0 : sent - listener.packets.get();
+        long dropped = socket + queue.dropped() + pipeline.dropped();
+        System.out.printf("Dropped %d (%.2f%%): %d by the socket, %d by the ingest queue, %d by the workers%n",
+                dropped, 100.0 * dropped / sent, socket, queue.dropped(), pipeline.dropped());
+        if (listener != null) {
+            System.out.printf("Discarded by the listener: %d filtered, %d sampled%n",
+                    listener.filtered.get(), listener.sampled.get());
+        }
+        System.out.printf("Handled %d connection events%n", handled.get());
+        
+        int n = Math.min(measured.get(), latencies.length);
+        if (n == 0) {
+            System.out.println("No latency samples");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        System.out.printf("Latency from send to counted, microseconds: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[n - 1] / 1e3);
+    }
+    
+    private static double percentile(long[] sorted, double q) {
+        int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e3;
+    }
+    
+    private static List<Message> read(String file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            in.mark(4);
+            byte[] magic = new byte[4];
+            int n = in.read(magic);
+            in.reset();
+            if (n == 4 && Pcap.isPcap(magic)) {
+                return new Pcap(in).read();
+            }
+            return readLines(in);
+        }
+    }
+    
+    private static List<Message> readLines(InputStream in) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        List<Long> seconds = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        long previous = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            Matcher m = TIMESTAMP.matcher(line);
+            long second = previous;
+            if (m.find()) {
+                // good enough for ordering within a capture, which is all we need
+                second = ((((MONTHS.indexOf(m.group(1)) * 31L + Long.parseLong(m.group(2))) * 24
+                        + Long.parseLong(m.group(3))) * 60 + Long.parseLong(m.group(4))) * 60
+                        + Long.parseLong(m.group(5)));
+                if (!seconds.isEmpty() && second < previous) {
+                    second = previous;
+                }
+            }
+            previous = second;
+            seconds.add(second);
+            messages.add(new Message(0, line.getBytes(StandardCharsets.US_ASCII)));
+        }
+        // spread the messages of each second evenly across it
+        List<Message> timed = new ArrayList<>(messages.size());
+        int i = 0;
+        while (i < messages.size()) {
+            int j = i;
+            while (j < messages.size() && seconds.get(j).equals(seconds.get(i))) {
+                j++;
+            }
+            for (int k = i; k < j; k++) {
+                long time = TimeUnit.SECONDS.toNanos(seconds.get(k) - seconds.get(0))
+                        + TimeUnit.SECONDS.toNanos(1) * (k - i) / (j - i);
+                timed.add(new Message(time, messages.get(k).payload));
+            }
+            i = j;
+        }
+        return timed;
+    }
+    
+    /**
+     * Just enough of libpcap's file format to pull UDP payloads out of
+     * Ethernet (with or without VLAN tags), raw IP, BSD loopback and Linux
+     * cooked captures. IPv4 fragments other than the first are skipped.
+     */
+    private static final class Pcap {
+        
+        private static final int MICROSECONDS = 0xa1b2c3d4;
+        private static final int NANOSECONDS = 0xa1b23c4d;
+        
+        private final DataInputStream in;
+        private ByteOrder order;
+        private boolean nanoseconds;
+        private int linkType;
+        
+        Pcap(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+        
+        static boolean isPcap(byte[] magic) {
+            int big = ByteBuffer.wrap(magic).getInt();
+            int little = ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            return big == MICROSECONDS || big == NANOSECONDS || little == MICROSECONDS || little == NANOSECONDS;
+        }
+        
+        List<Message> read() throws IOException {
+            ByteBuffer header = header(24);
+            int magic = header.getInt(0);
+            if (magic != MICROSECONDS && magic != NANOSECONDS) {
+                order = ByteOrder.LITTLE_ENDIAN;
+                header.order(order);
+                magic = header.getInt(0);
+            } else {
+                order = ByteOrder.BIG_ENDIAN;
+            }
+            nanoseconds = magic == NANOSECONDS;
+            linkType = header.getInt(20) & 0x0fffffff;
+            
+            List<Message> messages = new ArrayList<>();
+            while (true) {
+                ByteBuffer record;
+                try {
+                    record = header(16);
+                } catch (EOFException ex) {
+                    break;
+                }
+                long time = TimeUnit.SECONDS.toNanos(record.getInt(0) & 0xffffffffL)
+                        + (record.getInt(4) & 0xffffffffL) * (nanoseconds ? 1 : 1000);
+                byte[] frame = new byte[record.getInt(8)];
+                in.readFully(frame);
+                byte[] payload = udpPayload(ByteBuffer.wrap(frame));
+                if (payload != null) {
+                    messages.add(new Message(time, payload));
+                }
+            }
+            if (!messages.isEmpty()) {
+                // captures from more than one interface can be out of order
+                messages.sort((a, b) -> Long.compare(a.time, b.time));
+            }
+            return messages;
+        }
+        
+        private ByteBuffer header(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return order == null ? buffer : buffer.order(order);
+        }
+        
+        private byte[] udpPayload(ByteBuffer frame) {
+            try {
+                int etherType;
+                switch (linkType) {
+                    case 1: // Ethernet
+                        frame.position(12);
+                        etherType = frame.getShort() & 0xffff;
+                        while (etherType == 0x8100 || etherType == 0x88a8) {
+                            frame.getShort();
+                            etherType = frame.getShort() & 0xffff;
+                        }
+                        break;
+                    case 0: // BSD loopback, address family in host byte order
+                        int family = frame.order(order).getInt();
+                        frame.order(ByteOrder.BIG_ENDIAN);
+                        etherType = family == 2 ? 0x0800 : 0x86dd;
+                        break;
+                    case 113: // Linux cooked
+                        frame.position(14);
+                        etherType = frame.getShort() & 0xffff;
+                        break;
+                    case 101: // raw IP
+                    case 12:
+                        etherType = (frame.get(0) >> 4) == 4 ? 0x0800 : 0x86dd;
+                        break;
+                    default:
+                        return null;
+                }
+                int protocol;
+                int end;
+                if (etherType == 0x0800) {
+                    int start = frame.position();
+                    int ihl = (frame.get(start) & 0x0f) * 4;
+                    end = start + (frame.getShort(start + 2) & 0xffff);
+                    int fragment = frame.getShort(start + 6) & 0x1fff;
+                    protocol = frame.get(start + 9) & 0xff;
+                    if (fragment != 0) {
+                        return null;
+                    }
+                    frame.position(start + ihl);
+                } else if (etherType == 0x86dd) {
+                    int start = frame.position();
+                    end = start + 40 + (frame.getShort(start + 4) & 0xffff);
+                    protocol = frame.get(start + 6) & 0xff;
+                    frame.position(start + 40);
+                } else {
+                    return null;
+                }
+                if (protocol != 17) {
+                    return null;
+                }
+                int udp = frame.position();
+                int length = (frame.getShort(udp + 4) & 0xffff) - 8;
+                // a truncated capture gets what was captured
+                length = Math.min(length, Math.min(end, frame.limit()) - udp - 8);
+                if (length <= 0) {
+                    return null;
+                }
+                byte[] payload = new byte[length];
+                frame.position(udp + 8);
+                frame.get(payload);
+                return payload;
+            } catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+                return null;
+            }
+        }
+    }
+}
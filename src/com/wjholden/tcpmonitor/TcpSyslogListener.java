@@ -0,0 +1,129 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Receives syslog over TCP, for firewalls that are too far away or too
+ * important for UDP.
+ * 
+ * Both framings in RFC 6587 are accepted and can be mixed on one connection:
+ * a frame that starts with a digit is octet counted ("LENGTH SP MESSAGE"),
+ * anything else runs up to the next LF or NUL. Each connection gets its own
+ * thread. A connection that sends a frame longer than 64 kB, or a malformed
+ * octet count, is closed.
+ * 
+ * Unlike UDP, TCP can push back. With ?overflow=block on the source (see
+ * {@link Source}) a full source queue stops this listener reading, the
+ * kernel's receive window fills up and the firewall buffers or slows down
+ * instead of us dropping its messages.
+ */
+public class TcpSyslogListener extends SyslogListener {
+    
+    private static final int MAX_MESSAGE = 65535;
+    
+    private final InetAddress address;
+    private final Metrics.Counter connections;
+    
+    /**
+     * @param address the local address to bind, or null for all of them.
+     */
+    public TcpSyslogListener(InetAddress address, int port, Source... sources) {
+        super("tcp", port, sources);
+        this.address = address;
+        connections = Metrics.counter("syslog_connections_total", "TCP connections accepted.", "listener", name);
+    }
+    
+    @Override
+    public void run() {
+        try (ServerSocket server = new ServerSocket(port, 50, address)) {
+            while (true) {
+                Socket socket = server.accept();
+                connections.increment();
+                Thread reader = new Thread(() -> read(socket), name + " " + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    private void read(Socket socket) {
+        // room for the largest frame and its octet count
+        byte[] buf = new byte[MAX_MESSAGE + 16];
+        int start = 0, end = 0;
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            InetAddress sender = s.getInetAddress();
+            while (true) {
+                int next;
+                while (start < end && (next = frame(sender, buf, start, end)) != start) {
+                    start = next;
+                }
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                if (end == buf.length) {
+                    throw new IOException("Syslog frame too long from " + sender);
+                }
+                int n = in.read(buf, end, buf.length - end);
+                if (n < 0) {
+                    return;
+                }
+                end += n;
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
+    }
+    
+    /**
+     * Deliver the frame at the start of the buffer, if it is complete.
+     * 
+     * @return the index after the frame, or start if more bytes are needed.
+     */
+    private int frame(InetAddress sender, byte[] buf, int start, int end) throws IOException {
+        int i = start;
+        if (isDigit(buf[i])) {
+            int length = 0;
+            while (i < end && isDigit(buf[i])) {
+                length = length * 10 + (buf[i++] - '0');
+                if (length > MAX_MESSAGE) {
+                    throw new IOException("Syslog frame too long from " + sender);
+                }
+            }
+            if (i == end) {
+                return start;
+            }
+            if (buf[i++] != ' ') {
+                throw new IOException("Bad syslog octet count from " + sender);
+            }
+            if (end - i < length) {
+                return start;
+            }
+            deliver(sender, buf, i, length);
+            return i + length;
+        }
+        while (i < end && buf[i] != '\n' && buf[i] != 0) {
+            i++;
+        }
+        if (i == end) {
+            return start;
+        }
+        // an empty frame is just a trailer some senders add after octet counted ones
+        if (i > start) {
+            deliver(sender, buf, start, i - start);
+        }
+        return i + 1;
+    }
+    
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -2,12 +2,11 @@ package com.wjholden.tcpmonitor;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
-import java.util.Queue;
 
 public class UnicastSyslogListener extends SyslogListener {
     
-    public UnicastSyslogListener(int port, Queue<String> queue, Object lock) {
-        super(queue, lock, port);
+    public UnicastSyslogListener(int port, Source... sources) {
+        super("unicast", port, sources);
     }
 
     @Override
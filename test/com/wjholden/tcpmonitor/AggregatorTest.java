@@ -0,0 +1,273 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs an {@link Aggregator} on an ephemeral loopback port, fed by real
+ * {@link Collector}s and by a fake one that writes frames by hand.
+ */
+public class AggregatorTest {
+    
+    private static final long TIMEOUT = 5000;
+    private static final int SIDE = 1 << ConnectionGrid.ZOOM;
+    
+    private ConnectionGrid merged;
+    private Aggregator aggregator;
+    private ServerSocket server;
+    private final List<Thread> threads = new ArrayList<>();
+    
+    @BeforeClass
+    public static void fastCollectors() {
+        System.setProperty("connectionmap.collector.interval", "20");
+    }
+    
+    @Before
+    public void start() throws IOException {
+        merged = new ConnectionGrid();
+        aggregator = new Aggregator(merged, 0);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        start(new Thread(() -> {
+            try {
+                aggregator.serve(server);
+            } catch (IOException ex) {
+                // closed by stop()
+            }
+        }));
+    }
+    
+    @After
+    public void stop() throws IOException, InterruptedException {
+        server.close();
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join(TIMEOUT);
+        }
+    }
+    
+    private void start(Thread thread) {
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+    
+    private ConnectionGrid collector(String name) throws IOException {
+        System.setProperty("connectionmap.collector.name", name);
+        ConnectionGrid grid = new ConnectionGrid();
+        start(new Thread(new Collector(grid, "localhost:" + server.getLocalPort()), name));
+        return grid;
+    }
+    
+    @Test
+    public void mergesCollectors() throws IOException {
+        ConnectionGrid a = collector("merge-a");
+        ConnectionGrid b = collector("merge-b");
+        int shared = fine(100, 200, 0, 0);
+        a.increment(shared, false);
+        a.increment(fine(5, 5, SIDE - 1, 0), true);
+        b.increment(shared, false);
+        b.increment(fine(700, 10, 0, SIDE - 1), false);
+        await(() -> sameAsSum(a, b), "key frames merged");
+        
+        // deltas, including a cell that empties
+        a.decrement(shared, false);
+        a.increment(fine(300, 300, 0, 0), true);
+        b.increment(shared, true);
+        await(() -> sameAsSum(a, b), "deltas merged");
+        assertEquals(1, merged.tcp(ConnectionGrid.ZOOM, shared));
+        assertEquals(1, merged.udp(ConnectionGrid.ZOOM, shared));
+    }
+    
+    @Test
+    public void skipsDuplicates() throws IOException {
+        try (Fake fake = new Fake("duplicates", 1)) {
+            fake.frame(Collector.KEY, 1, cell(10, 10), 3);
+            fake.frame(Collector.DELTA, 2, cell(20, 10), 4);
+            // the same sequence number again, with other counts
+            fake.frame(Collector.DELTA, 2, cell(20, 10), 9);
+            fake.frame(Collector.DELTA, 3, cell(30, 10), 5);
+            await(() -> merged.tcp(0, cell(30, 10)) == 5, "frame after the duplicate");
+            assertEquals(3, merged.tcp(0, cell(10, 10)));
+            assertEquals(4, merged.tcp(0, cell(20, 10)));
+            assertEquals(1, duplicates("duplicates"));
+        }
+        // an older session is skipped too
+        try (Fake old = new Fake("duplicates", 0)) {
+            old.frame(Collector.KEY, 1, cell(10, 10), 7);
+            old.frame(Collector.DELTA, 2, cell(40, 10), 1);
+            await(() -> duplicates("duplicates") == 3, "older session skipped");
+            assertEquals(3, merged.tcp(0, cell(10, 10)));
+            assertEquals(0, merged.tcp(0, cell(40, 10)));
+        }
+    }
+    
+    @Test
+    public void gapClosesConnection() throws IOException {
+        try (Fake fake = new Fake("gap", 1)) {
+            fake.frame(Collector.KEY, 1, cell(10, 20), 2);
+            fake.frame(Collector.DELTA, 3, cell(20, 20), 6);
+            fake.socket.setSoTimeout((int) TIMEOUT);
+            assertEquals("the aggregator hangs up", -1, fake.socket.getInputStream().read());
+            assertEquals(2, merged.tcp(0, cell(10, 20)));
+            assertEquals(0, merged.tcp(0, cell(20, 20)));
+        }
+        // and the collector resyncs with a key frame
+        try (Fake fake = new Fake("gap", 1)) {
+            fake.frame(Collector.KEY, 4, cell(20, 20), 6);
+            await(() -> merged.tcp(0, cell(10, 20)) == 0, "resynced");
+            assertEquals(6, merged.tcp(0, cell(20, 20)));
+        }
+    }
+    
+    @Test
+    public void keyFrameClearsCells() throws IOException {
+        try (Fake fake = new Fake("clear", 1)) {
+            fake.frame(Collector.KEY, 1, cell(10, 30), 1, cell(20, 30), 2);
+            await(() -> merged.tcp(0, cell(20, 30)) == 2, "first key frame");
+            fake.frame(Collector.KEY, 2, cell(20, 30), 5);
+            // cells missing from a key frame are cleared after the rest are set
+            await(() -> merged.count(0, cell(10, 30)) == 0, "second key frame");
+            assertEquals(5, merged.tcp(0, cell(20, 30)));
+            assertEquals(0, merged.count(ConnectionGrid.ZOOM, first(cell(10, 30))));
+        }
+    }
+    
+    @Test
+    public void expiresSilentCollectors() throws IOException {
+        try (Fake fake = new Fake("expiry", 1)) {
+            fake.frame(Collector.KEY, 1, cell(10, 40), 3);
+            await(() -> merged.tcp(0, cell(10, 40)) == 3, "key frame");
+            assertTrue(aggregator.statistics().contains("Collector expiry:"));
+            
+            aggregator.expire(System.currentTimeMillis() - 1000);
+            assertEquals("too soon to expire", 3, merged.tcp(0, cell(10, 40)));
+            aggregator.expire(System.currentTimeMillis() + 301_000);
+            assertEquals(0, merged.tcp(0, cell(10, 40)));
+            assertFalse(aggregator.statistics().contains("Collector expiry:"));
+            
+            // anything more on the old connection is refused
+            fake.frame(Collector.DELTA, 2, cell(20, 40), 1);
+            fake.socket.setSoTimeout((int) TIMEOUT);
+            assertEquals(-1, fake.socket.getInputStream().read());
+            assertEquals(0, merged.tcp(0, cell(20, 40)));
+        }
+    }
+    
+    private boolean sameAsSum(ConnectionGrid a, ConnectionGrid b) {
+        for (int cell = 0; cell < ConnectionGrid.cells(ConnectionGrid.ZOOM); cell++) {
+            if (merged.tcp(ConnectionGrid.ZOOM, cell) != a.tcp(ConnectionGrid.ZOOM, cell) + b.tcp(ConnectionGrid.ZOOM, cell)
+                    || merged.udp(ConnectionGrid.ZOOM, cell) != a.udp(ConnectionGrid.ZOOM, cell) + b.udp(ConnectionGrid.ZOOM, cell)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static long duplicates(String name) {
+        return Metrics.counter("aggregator_duplicates_total", "Frames skipped because they were already applied.",
+                "collector", name).get();
+    }
+    
+    private static void await(BooleanSupplier condition, String what) {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+    
+    private static int cell(int x, int y) {
+        return y * ConnectionGrid.WIDTH + x;
+    }
+    
+    /**
+     * @return a finest cell, dx and dy into the level 0 cell (x, y).
+     */
+    private static int fine(int x, int y, int dx, int dy) {
+        return first(cell(x, y)) + dy * ConnectionGrid.width(ConnectionGrid.ZOOM) + dx;
+    }
+    
+    /**
+     * @return the first finest cell under a level 0 cell.
+     */
+    private static int first(int cell) {
+        return ((cell / ConnectionGrid.WIDTH) << ConnectionGrid.ZOOM) * ConnectionGrid.width(ConnectionGrid.ZOOM)
+                + ((cell % ConnectionGrid.WIDTH) << ConnectionGrid.ZOOM);
+    }
+    
+    /**
+     * A collector that writes the protocol by hand, so that it can repeat
+     * and skip frames.
+     */
+    private final class Fake implements Closeable {
+        
+        final Socket socket;
+        private final DataOutputStream out;
+        private final byte[] scratch = new byte[16];
+        
+        Fake(String name, long session) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(Collector.HELLO);
+            varint(Collector.VERSION);
+            varint(ConnectionGrid.ZOOM);
+            out.writeLong(session);
+            varint(utf8.length);
+            out.write(utf8);
+        }
+        
+        /**
+         * Send a frame with TCP counts in the first finest cell under each
+         * listed level 0 cell.
+         * 
+         * @param cells level 0 cells in ascending order, each followed by its
+         * count.
+         */
+        void frame(byte type, long sequence, int... cells) throws IOException {
+            out.writeByte(type);
+            out.writeLong(sequence);
+            out.writeLong(System.currentTimeMillis());
+            varint(cells.length / 2);
+            int previous = -1;
+            for (int i = 0; i < cells.length; i += 2) {
+                varint(cells[i] - previous);
+                previous = cells[i];
+                for (int j = 0; j < SIDE * SIDE; j++) {
+                    varint(j == 0 ? cells[i + 1] : 0);
+                    varint(0);
+                }
+            }
+            out.flush();
+        }
+        
+        private void varint(int value) throws IOException {
+            out.write(scratch, 0, SnapshotLog.putVarint(scratch, 0, value));
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.wjholden.tcpmonitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks {@link AsaParser} against the expected result of each message in a
+ * table. Well-formed messages are also checked against
+ * {@link RegexAsaParser}, the original regexes it replaced; the messages
+ * where AsaParser deliberately parts from them are only checked against
+ * what we expect.
+ */
+@RunWith(Enclosed.class)
+public class AsaParserTest {
+    
+    private static final String TAIL_BUILT = " (203.0.113.9/443) to inside:10.0.0.1/5000 (198.51.100.1/5000)";
+    private static final String TAIL_TEARDOWN = " to inside:10.0.0.1/5000 duration 0:00:01 bytes 1234";
+    
+    /**
+     * Well-formed messages, which both parsers must agree on.
+     */
+    @RunWith(Parameterized.class)
+    public static class WellFormed extends Row {
+        
+        /**
+         * message, then the expected message ID, connection ID and outside
+         * address, or null for a message that shouldn't parse.
+         */
+        @Parameters(name = "{0}")
+        public static List<Object[]> messages() {
+            return Arrays.asList(new Object[][] {
+                // built and teardown, TCP and UDP, IPv4
+                { "<166>%ASA-6-302013: Built outbound TCP connection 1 for outside:203.0.113.9/443" + TAIL_BUILT,
+                    302013, 1L, "203.0.113.9" },
+                { "<166>%ASA-6-302014: Teardown TCP connection 2 for outside:203.0.113.9/443" + TAIL_TEARDOWN,
+                    302014, 2L, "203.0.113.9" },
+                { "<166>%ASA-6-302015: Built inbound UDP connection 3 for outside:192.0.2.53/53" + TAIL_BUILT,
+                    302015, 3L, "192.0.2.53" },
+                { "<166>%ASA-6-302016: Teardown UDP connection 4 for outside:192.0.2.53/53" + TAIL_TEARDOWN,
+                    302016, 4L, "192.0.2.53" },
+                // the same for IPv6
+                { "<166>%ASA-6-302013: Built outbound TCP connection 5 for outside:2001:db8::9/443" + TAIL_BUILT,
+                    302013, 5L, "2001:db8::9" },
+                { "<166>%ASA-6-302014: Teardown TCP connection 6 for outside:2001:db8::9/443" + TAIL_TEARDOWN,
+                    302014, 6L, "2001:db8::9" },
+                { "<166>%ASA-6-302015: Built inbound UDP connection 7 for outside:2001:db8:0:1:2:3:4:5/53" + TAIL_BUILT,
+                    302015, 7L, "2001:db8:0:1:2:3:4:5" },
+                { "<166>%ASA-6-302016: Teardown UDP connection 8 for outside:::ffff:192.0.2.1/53" + TAIL_TEARDOWN,
+                    302016, 8L, "192.0.2.1" },
+                // no connection ID still gives an address
+                { "<166>%ASA-6-302013: Built outbound TCP connection for outside:203.0.113.9/443" + TAIL_BUILT,
+                    302013, -1L, "203.0.113.9" },
+                { "<166>%ASA-6-302016: Teardown UDP connection x9 for outside:192.0.2.53/53" + TAIL_TEARDOWN,
+                    302016, -1L, "192.0.2.53" },
+                // trailing line endings
+                { "<166>%ASA-6-302013: Built outbound TCP connection 9 for outside:203.0.113.9/443" + TAIL_BUILT + "\n",
+                    302013, 9L, "203.0.113.9" },
+                { "<166>%ASA-6-302014: Teardown TCP connection 10 for outside:203.0.113.9/443" + TAIL_TEARDOWN + "\r\n",
+                    302014, 10L, "203.0.113.9" },
+                { "<166>%ASA-6-302015: Built inbound UDP connection 11 for outside:192.0.2.53/53\r",
+                    302015, 11L, "192.0.2.53" },
+                // the last outside address wins
+                { "<166>%ASA-6-302013: Built outbound TCP connection 13 for outside:203.0.113.9/443 via outside:192.0.2.7/1",
+                    302013, 13L, "192.0.2.7" },
+                // other interface names and other messages
+                { "<166>%ASA-6-302013: Built outbound TCP connection 14 for dmz:203.0.113.9/443 to inside:10.0.0.1/5000",
+                    null, null, null },
+                { "<166>%ASA-6-305011: Built dynamic TCP translation from inside:10.0.0.1/5000 to outside:203.0.113.9/6000",
+                    null, null, null },
+                { "<166>%ASA-6-106015: Deny TCP (no connection) from 203.0.113.9/443 to 10.0.0.1/5000 flags RST",
+                    null, null, null },
+            });
+        }
+        
+        public WellFormed(String message, Integer id, Long connection, String address) {
+            super(message, id, connection, address);
+        }
+        
+        @Test
+        public void matchesReference() {
+            assertEquals(parse(new RegexAsaParser("outside")), parse(new AsaParser("outside")));
+        }
+    }
+    
+    /**
+     * Messages that AsaParser deliberately reads differently from the
+     * original regexes.
+     */
+    @RunWith(Parameterized.class)
+    public static class Deliberate extends Row {
+        
+        /**
+         * Like {@link WellFormed#messages}.
+         */
+        @Parameters(name = "{0}")
+        public static List<Object[]> messages() {
+            return Arrays.asList(new Object[][] {
+                // the tag decides, not digits that come later
+                { "<166>%ASA-6-302014: Teardown TCP connection 12 for outside:203.0.113.9/443" + TAIL_TEARDOWN + " 302013",
+                    302014, 12L, "203.0.113.9" },
+                // no "%ASA-n-id:" tag
+                { "<166>%ASA-4-302013 Built outbound TCP connection 15 for outside:203.0.113.9/443",
+                    null, null, null },
+                { "302013 connection 16 for outside:203.0.113.9/443", null, null, null },
+                // junk
+                { "<166>%ASA-6-302013: Built outbound TCP connection 17 for outside:203.0.113.999/443",
+                    null, null, null },
+                { "<166>%ASA-6-302013: Built outbound TCP connection 18 for outside:203.0.113.9", null, null, null },
+                { "", null, null, null },
+            });
+        }
+        
+        public Deliberate(String message, Integer id, Long connection, String address) {
+            super(message, id, connection, address);
+        }
+    }
+    
+    /**
+     * One message and what AsaParser should make of it.
+     */
+    abstract static class Row {
+        
+        private final String message;
+        private final Integer id;
+        private final Long connection;
+        private final String address;
+        
+        Row(String message, Integer id, Long connection, String address) {
+            this.message = message;
+            this.id = id;
+            this.connection = connection;
+            this.address = address;
+        }
+        
+        @Test
+        public void parsesAsExpected() {
+            assertEquals(expected(), parse(new AsaParser("outside")));
+        }
+        
+        @Test
+        public void routesWhatParses() {
+            byte[] buf = message.getBytes(StandardCharsets.US_ASCII);
+            if (id != null) {
+                // the dispatcher must not drop anything a worker could count
+                assertTrue(new AsaParser("outside").route(buf, 0, buf.length) >= 0);
+            }
+        }
+        
+        private String expected() {
+            if (id == null) {
+                return "unparsed";
+            }
+            AsaEvent event = new AsaEvent();
+            byte[] text = address.getBytes(StandardCharsets.US_ASCII);
+            AsaParser.parseAddress(text, 0, text.length, event);
+            event.messageId = id;
+            event.connection = connection;
+            return event.toString();
+        }
+        
+        String parse(AsaParser parser) {
+            // in the middle of a bigger buffer, as a listener would hand it over
+            byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+            byte[] buf = new byte[bytes.length + 8];
+            Arrays.fill(buf, (byte) '#');
+            System.arraycopy(bytes, 0, buf, 4, bytes.length);
+            AsaEvent event = new AsaEvent();
+            return parser.parse(buf, 4, bytes.length, event) ? event.toString() : "unparsed";
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks {@link ConnectionTable}'s backward shift deletion inside clusters of
+ * colliding keys, and expiry, against what a map would hold.
+ */
+public class ConnectionTableTest {
+    
+    private static final int SLOTS = 16;
+    /** What a new table of 16 slots holds before it grows. */
+    private static final int ROOM = SLOTS / 2;
+    
+    @Test
+    public void storesCellAndProtocol() {
+        ConnectionTable table = new ConnectionTable(SLOTS);
+        assertEquals(ConnectionTable.ABSENT, table.put(7, 1234, true, 0));
+        int previous = table.put(7, 99, false, 0);
+        assertEquals(1234, ConnectionTable.cell(previous));
+        assertTrue(ConnectionTable.isUdp(previous));
+        assertEquals(1, table.size());
+        int value = table.remove(7);
+        assertEquals(99, ConnectionTable.cell(value));
+        assertFalse(ConnectionTable.isUdp(value));
+        assertEquals(ConnectionTable.ABSENT, table.remove(7));
+        assertEquals(0, table.size());
+    }
+    
+    @Test
+    public void deletesFromEveryPlaceInACluster() {
+        // every key in the cluster has the same home slot
+        List<Long> keys = sameHome(3, ROOM - 1);
+        for (int victim = 0; victim < keys.size(); victim++) {
+            ConnectionTable table = new ConnectionTable(SLOTS);
+            Map<Long, Integer> expected = new HashMap<>();
+            for (long key : keys) {
+                put(table, expected, key);
+            }
+            remove(table, expected, keys.get(victim));
+            check(table, expected);
+        }
+    }
+    
+    @Test
+    public void deletesFromAClusterThatWraps() {
+        // homes at the last slot spill over into slots 0, 1, ...
+        List<Long> keys = sameHome(SLOTS - 1, 4);
+        // and an entry whose home is slot 1, pushed along by the spill
+        keys.add(sameHome(1, 1).get(0));
+        for (int victim = 0; victim < keys.size(); victim++) {
+            ConnectionTable table = new ConnectionTable(SLOTS);
+            Map<Long, Integer> expected = new HashMap<>();
+            for (long key : keys) {
+                put(table, expected, key);
+            }
+            remove(table, expected, keys.get(victim));
+            check(table, expected);
+            // then empty the rest in a different order
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                if (expected.containsKey(keys.get(i))) {
+                    remove(table, expected, keys.get(i));
+                    check(table, expected);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void leavesEntriesBeforeTheirHome() {
+        // a cluster from slot 4 with entries at home in 4, 5 and 6; removing
+        // the first must not pull an entry in front of its home slot
+        List<Long> keys = new ArrayList<>(sameHome(4, 3));
+        keys.add(sameHome(5, 1).get(0));
+        keys.add(sameHome(6, 1).get(0));
+        keys.add(sameHome(4, 4).get(3));
+        ConnectionTable table = new ConnectionTable(SLOTS);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (long key : keys) {
+            put(table, expected, key);
+        }
+        for (long key : keys) {
+            remove(table, expected, key);
+            check(table, expected);
+        }
+    }
+    
+    @Test
+    public void matchesAMapThroughGrowth() {
+        Random random = new Random(1);
+        ConnectionTable table = new ConnectionTable(SLOTS);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            // few enough keys that clusters form and get taken apart
+            long key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(value(expected.remove(key)), table.remove(key));
+            } else {
+                int cell = random.nextInt(ConnectionGrid.CELLS);
+                boolean udp = random.nextBoolean();
+                Integer previous = expected.put(key, cell << 1 | (udp ? 1 : 0));
+                assertEquals(value(previous), table.put(key, cell, udp, 0));
+            }
+        }
+        check(table, expected);
+    }
+    
+    @Test
+    public void expiresOnlyOldConnections() {
+        ConnectionTable table = new ConnectionTable(SLOTS);
+        Map<Long, Integer> old = new HashMap<>();
+        Map<Long, Integer> young = new HashMap<>();
+        // clusters that wrap, with old and young entries mixed in them
+        List<Long> keys = sameHome(SLOTS - 2, 4);
+        keys.addAll(sameHome(3, 3));
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.get(i);
+            boolean udp = i % 3 == 0;
+            table.put(key, i, udp, i % 2 == 0 ? 100 : 200);
+            (i % 2 == 0 ? old : young).put(key, i << 1 | (udp ? 1 : 0));
+        }
+        // rebuilding a connection makes it young again
+        long rebuilt = keys.get(0);
+        table.put(rebuilt, 0, true, 300);
+        young.put(rebuilt, old.remove(rebuilt));
+        
+        Map<Long, Integer> expired = new HashMap<>();
+        int n = table.expire(150, (connection, cell, udp) -> {
+            Integer before = expired.put(connection, cell << 1 | (udp ? 1 : 0));
+            assertEquals("expired once", null, before);
+        });
+        assertEquals(old.size(), n);
+        assertEquals(old, expired);
+        check(table, young, 300);
+        
+        assertEquals(0, table.expire(150, (connection, cell, udp) -> {
+            throw new AssertionError("nothing left to expire");
+        }));
+        assertEquals(young.size(), table.expire(Long.MAX_VALUE, (connection, cell, udp) -> { }));
+        assertEquals(0, table.size());
+    }
+    
+    private static void put(ConnectionTable table, Map<Long, Integer> expected, long key) {
+        int cell = (int) (key % 1000);
+        assertEquals(ConnectionTable.ABSENT, table.put(key, cell, false, 0));
+        expected.put(key, cell << 1);
+    }
+    
+    private static void remove(ConnectionTable table, Map<Long, Integer> expected, long key) {
+        assertEquals(value(expected.remove(key)), table.remove(key));
+    }
+    
+    private static int value(Integer value) {
+        return value == null ? ConnectionTable.ABSENT : value;
+    }
+    
+    private static void check(ConnectionTable table, Map<Long, Integer> expected) {
+        check(table, expected, 0);
+    }
+    
+    /**
+     * Every expected key is found with its value, and nothing else is there.
+     * 
+     * @param now when the keys are put back after being looked up.
+     */
+    private static void check(ConnectionTable table, Map<Long, Integer> expected, long now) {
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            // remove and put back, since remove is the only lookup
+            long key = entry.getKey();
+            int value = entry.getValue();
+            assertEquals("key " + key, value, table.remove(key));
+            assertEquals(ConnectionTable.ABSENT, table.put(key, ConnectionTable.cell(value),
+                    ConnectionTable.isUdp(value), now));
+        }
+    }
+    
+    /**
+     * @return n keys whose home is the given slot of a 16 slot table.
+     */
+    private static List<Long> sameHome(int slot, int n) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < n; key++) {
+            if (home(key) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * The table's own hash.
+     */
+    private static int home(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & (SLOTS - 1);
+    }
+}
@@ -0,0 +1,244 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks each {@link RingBuffer.OverflowPolicy} at capacity, wrap-around,
+ * and the ways a consumer waits.
+ */
+public class RingBufferTest {
+    
+    private static final long TIMEOUT = 5000;
+    
+    @Test
+    public void roundsCapacityUp() {
+        assertEquals(2, new RingBuffer<Integer>(0, RingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(8, new RingBuffer<Integer>(5, RingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8, RingBuffer.OverflowPolicy.DROP_NEWEST).capacity());
+    }
+    
+    @Test
+    public void staysInOrderAcrossWraps() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(8, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        int next = 0;
+        int expected = 0;
+        // uneven batches, so the head and tail lap the slots at every offset
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 1 + round % 8; i++) {
+                assertTrue(buffer.offer(next++));
+            }
+            assertEquals(1 + round % 8, buffer.size());
+            Integer element;
+            while ((element = buffer.poll()) != null) {
+                assertEquals(expected++, (int) element);
+            }
+            assertTrue(buffer.isEmpty());
+        }
+        assertEquals(next, expected);
+        assertEquals(0, buffer.dropped());
+    }
+    
+    @Test
+    public void dropNewestKeepsWhatIsQueued() {
+        RingBuffer<Integer> buffer = full(RingBuffer.OverflowPolicy.DROP_NEWEST);
+        assertFalse(buffer.offer(8));
+        assertFalse(buffer.offer(9));
+        assertEquals(2, buffer.dropped());
+        assertEquals(8, buffer.size());
+        drain(buffer, 0, 8);
+    }
+    
+    @Test
+    public void dropOldestEvictsTheHead() {
+        RingBuffer<Integer> buffer = full(RingBuffer.OverflowPolicy.DROP_OLDEST);
+        for (int i = 8; i < 13; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertEquals(5, buffer.dropped());
+        assertEquals(8, buffer.size());
+        drain(buffer, 5, 13);
+    }
+    
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        RingBuffer<Integer> buffer = full(RingBuffer.OverflowPolicy.BLOCK);
+        AtomicBoolean offered = new AtomicBoolean();
+        Thread producer = new Thread(() -> offered.set(buffer.offer(8)));
+        producer.start();
+        Thread.sleep(50);
+        assertTrue("still waiting", producer.isAlive());
+        assertEquals(0, (int) buffer.poll());
+        producer.join(TIMEOUT);
+        assertTrue(offered.get());
+        assertEquals(0, buffer.dropped());
+        drain(buffer, 1, 9);
+    }
+    
+    @Test
+    public void blockGivesUpWhenInterrupted() throws InterruptedException {
+        RingBuffer<Integer> buffer = full(RingBuffer.OverflowPolicy.BLOCK);
+        AtomicBoolean offered = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> offered.set(buffer.offer(8)));
+        producer.start();
+        Thread.sleep(50);
+        producer.interrupt();
+        producer.join(TIMEOUT);
+        assertFalse(offered.get());
+        assertEquals(1, buffer.dropped());
+        drain(buffer, 0, 8);
+    }
+    
+    @Test
+    public void offerIfRoomIgnoresThePolicy() {
+        for (RingBuffer.OverflowPolicy policy : RingBuffer.OverflowPolicy.values()) {
+            RingBuffer<Integer> buffer = full(policy);
+            assertFalse(policy.name(), buffer.offerIfRoom(8));
+            // the caller still has the message, so it isn't dropped
+            assertEquals(policy.name(), 0, buffer.dropped());
+            drain(buffer, 0, 8);
+            assertTrue(policy.name(), buffer.offerIfRoom(8));
+        }
+    }
+    
+    @Test
+    public void takeWaitsForAProducer() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(8, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        Thread producer = new Thread(() -> {
+            sleep(50);
+            buffer.offer(1);
+        });
+        producer.start();
+        assertEquals(1, (int) buffer.take());
+        producer.join(TIMEOUT);
+    }
+    
+    @Test
+    public void pollTimesOut() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(8, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        long start = System.nanoTime();
+        assertNull(buffer.poll(20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        buffer.offer(1);
+        assertEquals(1, (int) buffer.poll(20, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void awaitAnyWakesOnEitherBuffer() throws InterruptedException {
+        RingBuffer<?>[] buffers = {
+            new RingBuffer<Integer>(8, RingBuffer.OverflowPolicy.DROP_NEWEST),
+            new RingBuffer<Integer>(8, RingBuffer.OverflowPolicy.BLOCK)
+        };
+        @SuppressWarnings("unchecked")
+        RingBuffer<Integer> second = (RingBuffer<Integer>) buffers[1];
+        Thread producer = new Thread(() -> {
+            sleep(50);
+            second.offer(1);
+        });
+        producer.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (buffers[0].isEmpty() && buffers[1].isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            RingBuffer.awaitAny(buffers);
+        }
+        assertEquals(1, (int) second.poll());
+        producer.join(TIMEOUT);
+        
+        // a buffer that already has something doesn't wait at all
+        second.offer(2);
+        RingBuffer.awaitAny(buffers);
+        assertEquals(2, (int) second.poll());
+    }
+    
+    @Test
+    public void awaitAnyIsInterruptible() throws InterruptedException {
+        RingBuffer<?>[] buffers = { new RingBuffer<Integer>(8, RingBuffer.OverflowPolicy.DROP_NEWEST) };
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            try {
+                while (true) {
+                    RingBuffer.awaitAny(buffers);
+                }
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        consumer.interrupt();
+        assertTrue(interrupted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void producersRaceOnTheTail() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(64, RingBuffer.OverflowPolicy.BLOCK);
+        int producers = 4;
+        int each = 50_000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int first = p * each;
+            threads[p] = new Thread(() -> {
+                for (int i = first; i < first + each; i++) {
+                    buffer.offer(i);
+                }
+            });
+            threads[p].start();
+        }
+        // every message exactly once, and each producer's in its own order
+        boolean[] seen = new boolean[producers * each];
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        for (int n = 0; n < seen.length; n++) {
+            Integer element = buffer.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            if (element == null) {
+                fail("only " + n + " messages arrived");
+            }
+            assertFalse(seen[element]);
+            seen[element] = true;
+            assertTrue(element > last[element / each]);
+            last[element / each] = element;
+        }
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT);
+        }
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.dropped());
+    }
+    
+    /**
+     * @return a buffer of capacity 8 holding 0 to 7.
+     */
+    private static RingBuffer<Integer> full(RingBuffer.OverflowPolicy policy) {
+        RingBuffer<Integer> buffer = new RingBuffer<>(8, policy);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        return buffer;
+    }
+    
+    /**
+     * Poll everything and check that it was from up to end.
+     */
+    private static void drain(RingBuffer<Integer> buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            assertEquals(i, (int) buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+    
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.wjholden.tcpmonitor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.CityResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks {@link SearchTree#prefix} and the {@link GeoLocator} range index
+ * built on it against DatabaseReader, over a small database written here in
+ * each of the three record sizes.
+ */
+@RunWith(Parameterized.class)
+public class SearchTreeTest {
+    
+    private static final String[][] RECORDS = {
+        // country, latitude, longitude
+        { "DE", "52.5", "13.4" },
+        { "GB", "51.5", "-0.1" },
+        { "US", "37.7", "-122.4" },
+    };
+    private static final Object[][] NETWORKS = {
+        // network, prefix length, record
+        { "1.0.0.0", 8, 0 },
+        { "2.3.0.0", 16, 1 },
+        { "2.4.128.0", 17, 0 },
+        { "9.9.9.9", 32, 2 },
+        { "200.0.0.0", 6, 1 },
+        { "2001:db8::", 32, 2 },
+        { "2a00::", 12, 0 },
+    };
+    
+    @Parameters(name = "record size {0}")
+    public static List<Object[]> recordSizes() {
+        return Arrays.asList(new Object[][] { { 24 }, { 28 }, { 32 } });
+    }
+    
+    private final int recordSize;
+    private File file;
+    private DatabaseReader cities;
+    
+    public SearchTreeTest(int recordSize) {
+        this.recordSize = recordSize;
+    }
+    
+    @Before
+    public void write() throws IOException {
+        file = File.createTempFile("searchtree", ".mmdb");
+        Files.write(file.toPath(), database(recordSize));
+        cities = new DatabaseReader.Builder(file).build();
+    }
+    
+    @After
+    public void delete() throws IOException {
+        cities.close();
+        file.delete();
+    }
+    
+    @Test
+    public void prefixesMatchTheReader() throws IOException {
+        try (Reader reader = new Reader(file)) {
+            SearchTree tree = SearchTree.map(file, reader);
+            for (InetAddress address : samples()) {
+                AsaEvent event = event(address);
+                int prefix = tree.prefix(event);
+                int bits = prefix & ~SearchTree.NO_DATA;
+                JsonNode record = reader.get(address);
+                assertEquals(address + " has data", record != null, (prefix & SearchTree.NO_DATA) == 0);
+                Object[] network = network(address);
+                if (network != null) {
+                    assertEquals(address.toString(), network[1], bits);
+                }
+                // the whole network reported has the same record
+                BigInteger value = new BigInteger(1, address.getAddress());
+                int width = address.getAddress().length * 8;
+                BigInteger first = value.shiftRight(width - bits).shiftLeft(width - bits);
+                BigInteger last = first.add(BigInteger.ONE.shiftLeft(width - bits)).subtract(BigInteger.ONE);
+                assertEquals(address + " first", record, reader.get(address(first, width)));
+                assertEquals(address + " last", record, reader.get(address(last, width)));
+            }
+        }
+    }
+    
+    @Test
+    public void rangesMatchDatabaseReader() throws IOException, GeoIp2Exception {
+        System.setProperty("connectionmap.geoip.database", file.getPath());
+        try (GeoDatabase database = new GeoDatabase()) {
+            // a tiny cache, so that most answers come from the range index
+            GeoLocator locator = new GeoLocator(database, 16, 1024);
+            for (InetAddress address : samples()) {
+                long expected = GeoLocator.UNKNOWN;
+                try {
+                    CityResponse city = cities.city(address);
+                    String code = city.getCountry().getIsoCode();
+                    expected = GeoLocator.place(GeoLocator.classify(city.getLocation().getLatitude(),
+                            city.getLocation().getLongitude()), code.charAt(0) << 8 | code.charAt(1));
+                } catch (AddressNotFoundException ex) {
+                    assertNull(network(address));
+                }
+                assertEquals(address.toString(), expected, locator.locate(event(address)));
+            }
+            assertNotNull(database.tree());
+        } finally {
+            System.clearProperty("connectionmap.geoip.database");
+        }
+    }
+    
+    /**
+     * @return the edges of every network and of its neighbours, and random
+     * addresses near them.
+     */
+    private static List<InetAddress> samples() throws IOException {
+        List<InetAddress> samples = new ArrayList<>();
+        Random random = new Random(1);
+        for (Object[] network : NETWORKS) {
+            byte[] bytes = InetAddress.getByName((String) network[0]).getAddress();
+            int width = bytes.length * 8;
+            int bits = (Integer) network[1];
+            BigInteger first = new BigInteger(1, bytes);
+            BigInteger size = BigInteger.ONE.shiftLeft(width - bits);
+            BigInteger max = BigInteger.ONE.shiftLeft(width).subtract(BigInteger.ONE);
+            for (BigInteger value : new BigInteger[] {
+                first, first.add(size).subtract(BigInteger.ONE), first.subtract(BigInteger.ONE), first.add(size),
+                first.add(size.shiftRight(1))
+            }) {
+                if (value.signum() >= 0 && value.compareTo(max) <= 0) {
+                    samples.add(address(value, width));
+                }
+            }
+            for (int i = 0; i < 200; i++) {
+                // anywhere in the network or the one 4 bits wider
+                int spread = Math.min(width, width - bits + 4);
+                BigInteger offset = new BigInteger(spread, random);
+                BigInteger value = first.shiftRight(spread).shiftLeft(spread).add(offset);
+                samples.add(address(value, width));
+            }
+        }
+        return samples;
+    }
+    
+    private static Object[] network(InetAddress address) throws IOException {
+        for (Object[] network : NETWORKS) {
+            byte[] bytes = InetAddress.getByName((String) network[0]).getAddress();
+            if (bytes.length != address.getAddress().length) {
+                continue;
+            }
+            int shift = bytes.length * 8 - (Integer) network[1];
+            if (new BigInteger(1, bytes).shiftRight(shift).equals(new BigInteger(1, address.getAddress()).shiftRight(shift))) {
+                return network;
+            }
+        }
+        return null;
+    }
+    
+    private static InetAddress address(BigInteger value, int width) throws IOException {
+        byte[] bytes = new byte[width / 8];
+        byte[] raw = value.toByteArray();
+        for (int i = 0; i < Math.min(raw.length, bytes.length); i++) {
+            bytes[bytes.length - 1 - i] = raw[raw.length - 1 - i];
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+    
+    private static AsaEvent event(InetAddress address) {
+        AsaEvent event = new AsaEvent();
+        byte[] text = address.getHostAddress().getBytes(StandardCharsets.US_ASCII);
+        AsaParser.parseAddress(text, 0, text.length, event);
+        return event;
+    }
+    
+    /**
+     * @return an IPv6 MaxMind DB file of {@link #NETWORKS}, with IPv4 under
+     * ::/96 as in GeoLite2.
+     */
+    private static byte[] database(int recordSize) throws IOException {
+        // the search tree, with -1 for no data and -2 - i for record i
+        List<int[]> nodes = new ArrayList<>();
+        nodes.add(new int[] { -1, -1 });
+        for (Object[] network : NETWORKS) {
+            byte[] bytes = InetAddress.getByName((String) network[0]).getAddress();
+            int skip = bytes.length == 4 ? 96 : 0;
+            int bits = skip + (Integer) network[1];
+            int node = 0;
+            for (int depth = 0; depth < bits; depth++) {
+                int bit = depth < skip ? 0 : (bytes[(depth - skip) >>> 3] >>> (7 - ((depth - skip) & 7))) & 1;
+                if (depth == bits - 1) {
+                    nodes.get(node)[bit] = -2 - (Integer) network[2];
+                } else {
+                    if (nodes.get(node)[bit] == -1) {
+                        nodes.add(new int[] { -1, -1 });
+                        nodes.get(node)[bit] = nodes.size() - 1;
+                    }
+                    node = nodes.get(node)[bit];
+                }
+            }
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[RECORDS.length];
+        for (int i = 0; i < RECORDS.length; i++) {
+            offsets[i] = data.size();
+            map(data, 2);
+            string(data, "country");
+            map(data, 1);
+            string(data, "iso_code");
+            string(data, RECORDS[i][0]);
+            string(data, "location");
+            map(data, 2);
+            string(data, "latitude");
+            number(data, Double.parseDouble(RECORDS[i][1]));
+            string(data, "longitude");
+            number(data, Double.parseDouble(RECORDS[i][2]));
+        }
+        int count = nodes.size();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int[] node : nodes) {
+            long[] records = new long[2];
+            for (int i = 0; i < 2; i++) {
+                records[i] = node[i] == -1 ? count : node[i] >= 0 ? node[i] : count + 16 + offsets[-2 - node[i]];
+            }
+            switch (recordSize) {
+                case 24:
+                    bytes(out, records[0], 3);
+                    bytes(out, records[1], 3);
+                    break;
+                case 28:
+                    bytes(out, records[0] & 0xffffff, 3);
+                    out.write((int) ((records[0] >>> 24) << 4 | records[1] >>> 24));
+                    bytes(out, records[1] & 0xffffff, 3);
+                    break;
+                default:
+                    bytes(out, records[0], 4);
+                    bytes(out, records[1], 4);
+            }
+        }
+        out.write(new byte[16]);
+        data.writeTo(out);
+        out.write(new byte[] {
+            (byte) 0xab, (byte) 0xcd, (byte) 0xef, 'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+        });
+        map(out, 9);
+        // a description that looks like a node_count key with the wrong value
+        string(out, "description");
+        map(out, 1);
+        string(out, "en");
+        string(out, "Jnode_count\u0001\u0002\u0005");
+        string(out, "binary_format_major_version");
+        unsigned(out, 5, 2);
+        string(out, "binary_format_minor_version");
+        unsigned(out, 5, 0);
+        string(out, "build_epoch");
+        out.write(new byte[] { 8, 2 });
+        bytes(out, 1600000000, 8);
+        string(out, "database_type");
+        string(out, "GeoIP2-City");
+        string(out, "ip_version");
+        unsigned(out, 5, 6);
+        string(out, "languages");
+        out.write(new byte[] { 1, 4 });
+        string(out, "en");
+        string(out, "node_count");
+        unsigned(out, 6, count);
+        string(out, "record_size");
+        unsigned(out, 5, recordSize);
+        return out.toByteArray();
+    }
+    
+    private static void map(ByteArrayOutputStream out, int size) {
+        out.write(7 << 5 | size);
+    }
+    
+    private static void string(ByteArrayOutputStream out, String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.write(2 << 5 | utf8.length);
+        out.write(utf8, 0, utf8.length);
+    }
+    
+    private static void number(ByteArrayOutputStream out, double value) {
+        out.write(3 << 5 | 8);
+        bytes(out, Double.doubleToLongBits(value), 8);
+    }
+    
+    /**
+     * A uint16 (type 5) or uint32 (type 6) in four bytes.
+     */
+    private static void unsigned(ByteArrayOutputStream out, int type, long value) {
+        out.write(type << 5 | 4);
+        bytes(out, value, 4);
+    }
+    
+    private static void bytes(ByteArrayOutputStream out, long value, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            out.write((int) (value >>> (8 * i)));
+        }
+    }
+}
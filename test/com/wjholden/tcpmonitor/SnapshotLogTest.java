@@ -0,0 +1,207 @@
+package com.wjholden.tcpmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes a {@link SnapshotLog}, reopens it as a restart would, and reads it
+ * back, including after the last record was torn.
+ */
+public class SnapshotLogTest {
+    
+    private static final long START = 1_700_000_000_000L;
+    private static final long MINUTE = 60_000;
+    private static final long DAY = 86_400_000;
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final Random random = new Random(1);
+    private final List<SnapshotLog.Snapshot> written = new ArrayList<>();
+    
+    @Test
+    public void readsBackEverySnapshot() throws IOException {
+        File directory = folder.newFolder();
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            assertNull(log.latest());
+            assertEquals(-1, log.first());
+            // enough for a few keyframes and the deltas between them
+            append(log, 3 * SnapshotLog.KEYFRAME_INTERVAL + 7);
+            checkAll(log);
+        }
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            checkAll(log);
+            // after a restart the writer carries on in the same segment
+            append(log, 10);
+            checkAll(log);
+            assertEquals(1, segments(directory).length);
+        }
+    }
+    
+    @Test
+    public void readsBetweenSnapshots() throws IOException {
+        try (SnapshotLog log = log(folder.newFolder(), 16 * 1024 * 1024)) {
+            append(log, 5);
+            assertNull("before the first", log.read(START - 1));
+            check(written.get(2), log.read(START + 2 * MINUTE + MINUTE / 2));
+            check(written.get(4), log.read(Long.MAX_VALUE));
+        }
+    }
+    
+    @Test
+    public void rollsAndCompactsSegments() throws IOException {
+        File directory = folder.newFolder();
+        // segments roll every half hour, or sooner if one fills up
+        int size = 128 * 1024;
+        try (SnapshotLog log = new SnapshotLog(directory, size, 30 * MINUTE, 7 * DAY, Long.MAX_VALUE)) {
+            append(log, 200);
+            assertTrue(segments(directory).length >= 200 / 30);
+            checkAll(log);
+        }
+        // a size limit deletes the oldest segments first
+        try (SnapshotLog log = new SnapshotLog(directory, size, 30 * MINUTE, 7 * DAY, 3L * size)) {
+            append(log, 1);
+            assertTrue(segments(directory).length <= 3);
+            assertTrue(log.first() > START);
+            check(written.get(written.size() - 1), log.latest());
+        }
+    }
+    
+    @Test
+    public void skipsATornRecord() throws IOException {
+        File directory = folder.newFolder();
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            append(log, 20);
+        }
+        tear(directory);
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            assertEquals(written.get(18).time, log.last());
+            check(written.get(18), log.latest());
+            // the next append overwrites the torn record
+            written.remove(19);
+            append(log, 5);
+            checkAll(log);
+        }
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            checkAll(log);
+        }
+    }
+    
+    @Test
+    public void rebuildsAMissingIndex() throws IOException {
+        File directory = folder.newFolder();
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            append(log, 20);
+        }
+        tear(directory);
+        File index = new File(segments(directory)[0].getPath().replaceFirst("\\.log$", ".idx"));
+        assertTrue(index.delete());
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            assertTrue("index rebuilt", index.isFile());
+            written.remove(19);
+            checkAll(log);
+        }
+    }
+    
+    @Test
+    public void ignoresOtherFiles() throws IOException {
+        File directory = folder.newFolder();
+        try (RandomAccessFile junk = new RandomAccessFile(new File(directory, "snapshots-5.log"), "rw")) {
+            junk.writeInt(0x12345678);
+        }
+        try (SnapshotLog log = log(directory, 16 * 1024 * 1024)) {
+            assertNull(log.latest());
+            append(log, 3);
+            checkAll(log);
+        }
+    }
+    
+    private static SnapshotLog log(File directory, int segmentBytes) throws IOException {
+        return new SnapshotLog(directory, segmentBytes, DAY, 7 * DAY, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Append n more snapshots a minute apart, each a few cells away from the
+     * one before.
+     */
+    private void append(SnapshotLog log, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            int[] tcp;
+            int[] udp;
+            if (written.isEmpty()) {
+                tcp = new int[ConnectionGrid.CELLS];
+                udp = new int[ConnectionGrid.CELLS];
+            } else {
+                SnapshotLog.Snapshot last = written.get(written.size() - 1);
+                tcp = last.tcp.clone();
+                udp = last.udp.clone();
+            }
+            for (int j = 0; j < 50; j++) {
+                int cell = random.nextInt(ConnectionGrid.CELLS);
+                // counts go down as well as up, and some go back to zero
+                tcp[cell] = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << random.nextInt(20));
+                udp[cell] = random.nextInt(3);
+            }
+            long time = START + written.size() * MINUTE;
+            log.append(time, tcp, udp);
+            written.add(new SnapshotLog.Snapshot(time, tcp, udp));
+        }
+    }
+    
+    private void checkAll(SnapshotLog log) throws IOException {
+        assertEquals(written.get(0).time, log.first());
+        assertEquals(written.get(written.size() - 1).time, log.last());
+        for (SnapshotLog.Snapshot snapshot : written) {
+            check(snapshot, log.read(snapshot.time));
+        }
+    }
+    
+    private static void check(SnapshotLog.Snapshot expected, SnapshotLog.Snapshot actual) {
+        assertEquals(expected.time, actual.time);
+        assertArrayEquals("tcp at " + expected.time, expected.tcp, actual.tcp);
+        assertArrayEquals("udp at " + expected.time, expected.udp, actual.udp);
+    }
+    
+    /**
+     * Flip a byte in the payload of the last record, as if the process died
+     * while writing it.
+     */
+    private static void tear(File directory) throws IOException {
+        File segment = segments(directory)[0];
+        File index = new File(segment.getPath().replaceFirst("\\.log$", ".idx"));
+        int offset;
+        try (RandomAccessFile entries = new RandomAccessFile(index, "r")) {
+            // the last entry is time, offset, type
+            entries.seek(entries.length() - 8);
+            offset = entries.readInt();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // past the type, time, length and CRC
+            long payload = offset + 1 + 8 + 4 + 4;
+            file.seek(payload);
+            int b = file.read();
+            file.seek(payload);
+            file.write(b ^ 0xff);
+        }
+        assertFalse(index.length() == 0);
+    }
+    
+    private static File[] segments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        return files;
+    }
+}
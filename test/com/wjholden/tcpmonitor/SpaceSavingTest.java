@@ -0,0 +1,138 @@
+package com.wjholden.tcpmonitor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the {@link SpaceSaving} error bounds against exact counts, over
+ * skewed streams and over ones built to evict as often as possible.
+ */
+public class SpaceSavingTest {
+    
+    @Test
+    public void exactUnderCapacity() {
+        SpaceSaving summary = new SpaceSaving(8);
+        Map<Long, Long> exact = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            offer(summary, exact, i % 7 * 1_000_003L);
+        }
+        Map<Long, long[]> counted = counted(summary);
+        assertEquals(7, counted.size());
+        for (Map.Entry<Long, long[]> entry : counted.entrySet()) {
+            assertEquals((long) exact.get(entry.getKey()), entry.getValue()[0]);
+            assertEquals(0, entry.getValue()[1]);
+        }
+    }
+    
+    @Test
+    public void boundsHoldOnASkewedStream() {
+        Random random = new Random(1);
+        for (int capacity : new int[] { 1, 16, 64 }) {
+            SpaceSaving summary = new SpaceSaving(capacity);
+            Map<Long, Long> exact = new HashMap<>();
+            for (int i = 0; i < 200_000; i++) {
+                offer(summary, exact, zipf(random, 10_000));
+            }
+            check(summary, exact, capacity);
+        }
+    }
+    
+    @Test
+    public void boundsHoldWhenEveryOfferEvicts() {
+        // more distinct keys in rotation than slots, so nothing ever stays
+        SpaceSaving summary = new SpaceSaving(16);
+        Map<Long, Long> exact = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            offer(summary, exact, i % 17);
+        }
+        check(summary, exact, 16);
+        
+        // then one key that is really heavy, which must surface
+        for (int i = 0; i < 50_000; i++) {
+            offer(summary, exact, i % 3 == 0 ? 42 : 1000 + i);
+        }
+        check(summary, exact, 16);
+        assertTrue(counted(summary).containsKey(42L));
+    }
+    
+    @Test
+    public void startsAfreshAfterClear() {
+        SpaceSaving summary = new SpaceSaving(4);
+        for (int i = 0; i < 100; i++) {
+            summary.offer(i);
+        }
+        summary.clear();
+        assertEquals(0, summary.size());
+        assertEquals(0, summary.total());
+        assertTrue(counted(summary).isEmpty());
+        Map<Long, Long> exact = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            offer(summary, exact, i % 3);
+        }
+        check(summary, exact, 4);
+        assertFalse(counted(summary).containsKey(99L));
+    }
+    
+    private static void offer(SpaceSaving summary, Map<Long, Long> exact, long key) {
+        summary.offer(key);
+        exact.merge(key, 1L, Long::sum);
+    }
+    
+    /**
+     * The Space-Saving guarantees: no key is counted twice, every count is
+     * an overestimate by at most its error, which is at most total /
+     * capacity, the counts add up to the total, and every key seen more
+     * than total / capacity times is counted.
+     */
+    private static void check(SpaceSaving summary, Map<Long, Long> exact, int capacity) {
+        long total = 0;
+        for (long n : exact.values()) {
+            total += n;
+        }
+        assertEquals(total, summary.total());
+        Map<Long, long[]> counted = counted(summary);
+        assertEquals(Math.min(capacity, exact.size()), counted.size());
+        long sum = 0;
+        for (Map.Entry<Long, long[]> entry : counted.entrySet()) {
+            long truth = exact.get(entry.getKey());
+            long count = entry.getValue()[0];
+            long error = entry.getValue()[1];
+            String key = "key " + entry.getKey();
+            assertTrue(key + " undercounted", count >= truth);
+            assertTrue(key + " over its error", count - error <= truth);
+            assertTrue(key + " error too big", error <= total / capacity);
+            sum += count;
+        }
+        assertEquals(total, sum);
+        for (Map.Entry<Long, Long> entry : exact.entrySet()) {
+            if (entry.getValue() > total / capacity) {
+                assertTrue("key " + entry.getKey() + " missing", counted.containsKey(entry.getKey()));
+            }
+        }
+    }
+    
+    /**
+     * @return every counted key's count and error.
+     */
+    private static Map<Long, long[]> counted(SpaceSaving summary) {
+        Map<Long, long[]> counted = new HashMap<>();
+        summary.forEach((key, count, error) -> {
+            assertFalse("key " + key + " counted twice", counted.containsKey(key));
+            counted.put(key, new long[] { count, error });
+        });
+        assertEquals(summary.size(), counted.size());
+        return counted;
+    }
+    
+    /**
+     * @return a key from 0 to n - 1, roughly Zipf distributed.
+     */
+    private static long zipf(Random random, int n) {
+        return (long) Math.pow(n, random.nextDouble()) - 1;
+    }
+}